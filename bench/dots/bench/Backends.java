@@ -0,0 +1,56 @@
+package dots.bench;
+
+import dots.agent.q.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+
+final class Backends
+{
+    
+    private Backends()
+    {
+    }
+
+    
+    static StateMatrix create(String backend, long numStates, int numActions)
+        throws IOException
+    {
+        File file = File.createTempFile("dots-bench-", ".dat");
+        file.delete();
+        file.deleteOnExit();
+
+        String filename = file.getPath();
+
+        if (backend.equals("native"))
+            return NativeStateMatrix.create(filename, numStates, numActions);
+        else if (backend.equals("array"))
+            return ArrayStateMatrix.create(filename, numStates, numActions);
+        else if (backend.equals("mapped"))
+            return MappedStateMatrix.create(filename, numStates, numActions);
+        else if (backend.equals("quantized"))
+            return QuantizedStateMatrix.create(filename, numStates, numActions,
+                    QuantizedStateMatrix.Encoding.HALF,
+                    QuantizedStateMatrix.Rounding.STOCHASTIC, 1);
+        else if (backend.equals("sparse"))
+            return SparseStateMatrix.create(filename, numStates, numActions,
+                    SparseStateMatrix.DEFAULT_LOAD_FACTOR,
+                    SparseStateMatrix.DEFAULT_GROWTH_FACTOR);
+
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+
+    
+    static void fill(StateMatrix matrix, long seed)
+    {
+        // Non zero values everywhere, so a training agent scans every action
+        // instead of stopping at the first unexplored one.
+        Random random = new Random(seed);
+
+        for (long state = 0; state < matrix.getNumStates(); ++state) {
+            for (int action = 0; action < matrix.getNumActions(); ++action)
+                matrix.setQ(state, action, random.nextFloat() + 0.01f);
+        }
+    }
+}
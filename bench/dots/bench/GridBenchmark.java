@@ -0,0 +1,80 @@
+package dots.bench;
+
+import dots.agent.ActionSet;
+import dots.engine.Grid;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridBenchmark
+{
+    
+    // Dots per side. 9 gives a board with more than 64 lines.
+    @Param({"3", "5", "9"})
+    public int size;
+
+    
+    private Grid grid;
+
+    
+    private Grid halfFull;
+
+    
+    private int[] order;
+
+    
+    private int next;
+
+    
+    @Setup
+    public void setup()
+    {
+        grid = new Grid(size, size);
+        halfFull = new Grid(size, size);
+        order = new int[grid.getSize()];
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < order.length; ++i) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        for (int i = 0; i < order.length / 2; ++i)
+            halfFull.setLine(order[i]);
+    }
+
+    
+    @Benchmark
+    public int setLine()
+    {
+        if (next == order.length) {
+            grid.reset();
+            next = 0;
+        }
+
+        return grid.setLine(order[next++]);
+    }
+
+    
+    @Benchmark
+    public long getIdentifier()
+    {
+        return halfFull.getIdentifier();
+    }
+
+    
+    @Benchmark
+    public ActionSet getAvailableLines()
+    {
+        return halfFull.getAvailableLines();
+    }
+}
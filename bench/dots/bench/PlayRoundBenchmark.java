@@ -0,0 +1,95 @@
+package dots.bench;
+
+import dots.agent.Agent;
+import dots.agent.QLearningAgent;
+import dots.agent.RandomAgent;
+import dots.agent.q.StateMatrix;
+import dots.engine.DotsNBoxes;
+import dots.engine.Grid;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayRoundBenchmark
+{
+    
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Moves
+    {
+        public long moves;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            moves = 0;
+        }
+    }
+
+    
+    // q plays a training Q-learning agent against a random one, random
+    // plays two random agents and so measures the engine alone.
+    @Param({"q", "random"})
+    public String agents;
+
+    
+    @Param({"array", "sparse"})
+    public String backend;
+
+    
+    // Dots per side.
+    @Param({"3"})
+    public int size;
+
+    
+    private StateMatrix matrix;
+
+    
+    private DotsNBoxes game;
+
+    
+    private int numLines;
+
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        Grid grid = new Grid(size, size);
+        Agent first = new RandomAgent(1);
+
+        if (agents.equals("q")) {
+            matrix = Backends.create(backend, grid.getNumStates(),
+                    grid.getSize());
+            first = new QLearningAgent(true, matrix);
+        }
+
+        numLines = grid.getSize();
+        game = new DotsNBoxes(grid, first, new RandomAgent(2), 0);
+        game.setSeed(3);
+    }
+
+    
+    @TearDown
+    public void tearDown()
+    {
+        if (matrix != null)
+            matrix.shutdown();
+    }
+
+    
+    // Every round draws all lines, so moves per second is the round rate
+    // times the number of lines.
+    @Benchmark
+    public void playRound(Moves counter) throws InterruptedException
+    {
+        game.playRound();
+        counter.moves += numLines;
+    }
+}
@@ -0,0 +1,117 @@
+package dots.bench;
+
+import dots.agent.ActionSet;
+import dots.agent.QLearningAgent;
+import dots.agent.q.StateMatrix;
+import dots.engine.Grid;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QLearningBenchmark
+{
+    
+    private static final int NUM_SAMPLES = 1024;
+
+    
+    // The native backend needs the library built by the ccompile target.
+    @Param({"array", "native", "mapped", "sparse", "quantized"})
+    public String backend;
+
+    
+    // Dots per side. Dense tables for 4 already take 1.6 GB.
+    @Param({"3"})
+    public int size;
+
+    
+    private StateMatrix matrix;
+
+    
+    private QLearningAgent agent;
+
+    
+    private long[] states;
+
+    
+    private ActionSet[] actions;
+
+    
+    private int next;
+
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        Grid grid = new Grid(size, size);
+        Random random = new Random(42);
+
+        matrix = Backends.create(backend, grid.getNumStates(), grid.getSize());
+        Backends.fill(matrix, 42);
+        agent = new QLearningAgent(true, matrix);
+
+        // Positions from random games, so lookups are spread over the table
+        // the way they are in play.
+        states = new long[NUM_SAMPLES];
+        actions = new ActionSet[NUM_SAMPLES];
+
+        for (int i = 0; i < NUM_SAMPLES; ++i) {
+            grid.reset();
+
+            for (int n = random.nextInt(grid.getSize()); n > 0; --n) {
+                ActionSet free = grid.getAvailableLines();
+                grid.setLine(free.get(random.nextInt(free.size())));
+            }
+
+            ActionSet free = grid.getAvailableLines();
+            states[i] = grid.getIdentifier();
+            actions[i] = new ActionSet(grid.getSize());
+
+            for (int a = free.next(0); a >= 0; a = free.next(a + 1))
+                actions[i].add(a);
+        }
+    }
+
+    
+    @TearDown
+    public void tearDown()
+    {
+        matrix.shutdown();
+    }
+
+    
+    @Benchmark
+    public int getAction()
+    {
+        int i = next++ & (NUM_SAMPLES - 1);
+        return agent.getAction(states[i], actions[i]);
+    }
+
+    
+    // One full learning step, the action choice and the update it leads to.
+    @Benchmark
+    public int learn()
+    {
+        int i = next++ & (NUM_SAMPLES - 1);
+        int j = (i + 1) & (NUM_SAMPLES - 1);
+        int action = agent.getAction(states[i], actions[i]);
+
+        agent.giveFeedback(0, states[j], actions[j]);
+        return action;
+    }
+
+    
+    @Benchmark
+    public float updateQ()
+    {
+        int i = next++ & (NUM_SAMPLES - 1);
+        return matrix.updateQ(states[i], actions[i].next(0), 0.5f, 0.1f);
+    }
+}
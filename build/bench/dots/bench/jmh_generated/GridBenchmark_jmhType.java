@@ -0,0 +1,4 @@
+package dots.bench.jmh_generated;
+public class GridBenchmark_jmhType extends GridBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dots.bench.jmh_generated;
+public class PlayRoundBenchmark_Moves_jmhType extends PlayRoundBenchmark_Moves_jmhType_B3 {
+}
+
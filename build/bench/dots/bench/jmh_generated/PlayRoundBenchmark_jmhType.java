@@ -0,0 +1,4 @@
+package dots.bench.jmh_generated;
+public class PlayRoundBenchmark_jmhType extends PlayRoundBenchmark_jmhType_B3 {
+}
+
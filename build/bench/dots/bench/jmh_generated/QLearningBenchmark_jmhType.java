@@ -0,0 +1,4 @@
+package dots.bench.jmh_generated;
+public class QLearningBenchmark_jmhType extends QLearningBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,101 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class dots_agent_q_NativeStateMatrix */
+
+#ifndef _Included_dots_agent_q_NativeStateMatrix
+#define _Included_dots_agent_q_NativeStateMatrix
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_open
+ * Signature: ([B)I
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1open
+  (JNIEnv *, jclass, jbyteArray);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_create
+ * Signature: ([BJI)I
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1create
+  (JNIEnv *, jclass, jbyteArray, jlong, jint);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getQ
+ * Signature: (IJI)F
+ */
+JNIEXPORT jfloat JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getQ
+  (JNIEnv *, jclass, jint, jlong, jint);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_setQ
+ * Signature: (IJIF)V
+ */
+JNIEXPORT void JNICALL Java_dots_agent_q_NativeStateMatrix_c_1setQ
+  (JNIEnv *, jclass, jint, jlong, jint, jfloat);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_compareAndSetQ
+ * Signature: (IJIFF)Z
+ */
+JNIEXPORT jboolean JNICALL Java_dots_agent_q_NativeStateMatrix_c_1compareAndSetQ
+  (JNIEnv *, jclass, jint, jlong, jint, jfloat, jfloat);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getMaxValue
+ * Signature: (IJ)F
+ */
+JNIEXPORT jfloat JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getMaxValue
+  (JNIEnv *, jclass, jint, jlong);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getRow
+ * Signature: (IJ[F)V
+ */
+JNIEXPORT void JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getRow
+  (JNIEnv *, jclass, jint, jlong, jfloatArray);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getBestAction
+ * Signature: (IJ[J)I
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getBestAction
+  (JNIEnv *, jclass, jint, jlong, jlongArray);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getNumActions
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getNumActions
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_getNumStates
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getNumStates
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     dots_agent_q_NativeStateMatrix
+ * Method:    c_save
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1save
+  (JNIEnv *, jclass, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
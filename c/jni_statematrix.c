@@ -97,6 +97,27 @@ JNIEXPORT void JNICALL Java_dots_agent_q_NativeStateMatrix_c_1setQ
     statematrix_set_q(fd, state, action, value);
 }
 
+/**
+ * Atomically replace a Q value in a state matrix if it holds the expected
+ * value.
+ *
+ * @param env The Java environment.
+ * @param class The Java class this function belongs to.
+ * @param fd Reference to a state matrix.
+ * @param state The state part of the Q value.
+ * @param action The action part of the Q value.
+ * @param expected The value the Q value is expected to hold.
+ * @param value The new Q value.
+ * @return JNI_TRUE iff the value was replaced.
+ */
+JNIEXPORT jboolean JNICALL Java_dots_agent_q_NativeStateMatrix_c_1compareAndSetQ
+  (JNIEnv *env, jclass class, jint fd, jlong state, jint action,
+   jfloat expected, jfloat value)
+{
+    return statematrix_compare_and_set_q(fd, state, action, expected, value)
+        ? JNI_TRUE : JNI_FALSE;
+}
+
 /**
  * Find the maximum Q value for a given state.
  *
@@ -112,6 +133,55 @@ JNIEXPORT jfloat JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getMaxValue
     return statematrix_get_max_q(fd, state);
 }
 
+/**
+ * Copy all Q values of a state into a Java array.
+ *
+ * @param env The Java environment.
+ * @param class The Java class this function belongs to.
+ * @param fd Reference to a state matrix.
+ * @param state The state in question.
+ * @param row The array to fill, one element per action.
+ */
+JNIEXPORT void JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getRow
+  (JNIEnv *env, jclass class, jint fd, jlong state, jfloatArray row)
+{
+    const float *values;
+
+    if ((values = statematrix_get_row(fd, state)) != NULL)
+        (*env)->SetFloatArrayRegion(env, row, 0,
+                (*env)->GetArrayLength(env, row), values);
+}
+
+/**
+ * Find the action with the highest Q value among the actions in a mask.
+ *
+ * @param env The Java environment.
+ * @param class The Java class this function belongs to.
+ * @param fd Reference to a state matrix.
+ * @param state The state in question.
+ * @param jmask The words of the action mask.
+ * @return the best action, -1 if the mask is empty.
+ */
+JNIEXPORT jint JNICALL Java_dots_agent_q_NativeStateMatrix_c_1getBestAction
+  (JNIEnv *env, jclass class, jint fd, jlong state, jlongArray jmask)
+{
+    jint num_words, action;
+    jlong *mask;
+
+    num_words = (*env)->GetArrayLength(env, jmask);
+
+    /* The mask is only read, so no copy back is needed on release. */
+    if ((mask = (*env)->GetPrimitiveArrayCritical(env, jmask, NULL)) == NULL)
+        return -1;
+
+    action = statematrix_get_best_action(fd, state, (const uint64_t *)mask,
+            num_words);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, jmask, mask, JNI_ABORT);
+
+    return action;
+}
+
 /**
  * Load a state matrix from file.
  *
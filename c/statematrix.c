@@ -23,6 +23,27 @@
 #include <string.h>
 #include <stdlib.h>
 #include <stdio.h>
+#include <stdint.h>
+
+#if __BYTE_ORDER__ != __ORDER_LITTLE_ENDIAN__
+#error "The state matrix file format stores rows as little endian floats."
+#endif
+
+/*
+ * The file format shared with dots.agent.q.StateMatrixFile. A 64 byte
+ * little endian header followed by the rows:
+ *
+ *    0 magic, 4 version, 8 number of states (64 bit),
+ *   16 number of actions, 20 flags, 24 default Q value (float),
+ *   28 CRC32C of the rows, 32 encoding of the Q values, 36 scale of
+ *   integer encodings (float), 40 reserved.
+ *
+ * Only 32 bit float rows (encoding 0) are supported here.
+ */
+#define FILE_MAGIC          (0x444e4251)
+#define FILE_VERSION        (2)
+#define FILE_HEADER_SIZE    (64)
+#define FILE_FLAG_CHECKSUM  (1)
 
 typedef struct _stateFile StateFile;
 
@@ -31,39 +52,59 @@ typedef struct _stateFile StateFile;
  */
 struct _stateFile {
     char *filename;                 /* The filename where to save matrix. */
-    int num_states;                 /* The number of states in the matrix. */
+    long num_states;                /* The number of states in the matrix. */
     int num_actions;                /* The number of actions per state. */
     float *matrix;                  /* The actual matrix. */
-    StateFile *next;                /* The next state file in the list. */
+    float default_q;                /* The value of untouched states. */
 };
 
-static StateFile *fileRoot = NULL;  /* List of loaded files. */
+/* Loaded files, indexed by descriptor. Slots are never reused or moved, so
+ * lookups need no locking. */
+static StateFile *files[MAX_STATE_FILES];
+static int num_files = 0;           /* The number of slots in use. */
+
+static uint32_t crc32c_table[256];  /* Lookup table for crc32c. */
 
 /**
- * Append the given file to the list of loaded files.
+ * Append the given file to the table of loaded files.
  *
  * @param file The StateFile to append.
- * @return a reference to the StateFile.
+ * @return a reference to the StateFile, -1 if the table is full.
  */
 static int statematrix_append(StateFile *file);
 
 /**
- * Retrieve a StateFile from the list of loaded files.
+ * Retrieve a StateFile from the table of loaded files.
  *
  * @param descriptor The reference to the StateFile.
  * @return a StateFile pointer if successful, NULL otherwise.
  */
 static StateFile *statematrix_get(int descriptor);
 
+/**
+ * Continue a CRC32C (Castagnoli) checksum over the given bytes.
+ *
+ * @param crc The checksum so far, 0 to start a new one.
+ * @param data The bytes to add.
+ * @param length The number of bytes.
+ * @return the updated checksum.
+ */
+static uint32_t crc32c(uint32_t crc, const unsigned char *data, size_t length);
+
 int statematrix_create(const char *_filename, long num_states, int num_actions)
 {
-    int i;
+#if DEFAULT_Q_VALUE != 0
+    long i;
+#endif
     float *matrix;
     char *filename;
     StateFile *file;
 
     file = malloc(sizeof(StateFile));
-    matrix = malloc(sizeof(float) * num_states * num_actions);
+    /* calloc hands large blocks out as fresh zero pages from the kernel,
+     * which are only backed by memory once written. With a zero default
+     * this leaves nothing to initialize. */
+    matrix = calloc((size_t) num_states * num_actions, sizeof(float));
     filename = malloc(sizeof(char) * strlen(_filename) + 1);
 
     if (file == NULL || matrix == NULL || filename == NULL) {
@@ -75,14 +116,16 @@ int statematrix_create(const char *_filename, long num_states, int num_actions)
 
     strcpy(filename, _filename);
 
+#if DEFAULT_Q_VALUE != 0
     for (i = 0; i < num_states * num_actions; ++i)
         matrix[i] = DEFAULT_Q_VALUE;
+#endif
 
     file->filename      = filename;
     file->matrix        = matrix;
     file->num_states    = num_states;
     file->num_actions   = num_actions;
-    file->next          = NULL;
+    file->default_q     = DEFAULT_Q_VALUE;
 
     return statematrix_append(file);
 }
@@ -93,9 +136,15 @@ int statematrix_load(const char *_filename)
     float *matrix;
     FILE *fp;
     char *filename;
+    unsigned char header[FILE_HEADER_SIZE];
+    int32_t magic, version, flags, encoding;
+    int64_t num_states;
+    uint32_t checksum;
+    size_t size;
 
     file = malloc(sizeof(StateFile));
     filename = malloc(sizeof(char) * strlen(_filename) + 1);
+    matrix = NULL;
 
     if (file == NULL || filename == NULL) {
         free(file);
@@ -107,57 +156,109 @@ int statematrix_load(const char *_filename)
 
     /* Open file for reading and read meta data. */
     if ((fp = fopen(filename, "rb")) == NULL
-            || fread(file, sizeof(StateFile), 1, fp) != 1) {
-        free(file);
-        free(filename);
-
-        if (fp != NULL)
-            fclose(fp);
-        return -1;
-    }
+            || fread(header, sizeof(header), 1, fp) != 1)
+        goto fail;
+
+    memcpy(&magic, header + 0, sizeof(magic));
+    memcpy(&version, header + 4, sizeof(version));
+    memcpy(&num_states, header + 8, sizeof(num_states));
+    memcpy(&file->num_actions, header + 16, sizeof(file->num_actions));
+    memcpy(&flags, header + 20, sizeof(flags));
+    /* Untouched rows hold the default of the backend that wrote the file,
+     * it is kept for the next save. */
+    memcpy(&file->default_q, header + 24, sizeof(file->default_q));
+    memcpy(&checksum, header + 28, sizeof(checksum));
+    memcpy(&encoding, header + 32, sizeof(encoding));
+
+    if (magic != FILE_MAGIC || version != FILE_VERSION || encoding != 0)
+        goto fail;
+
+    file->num_states = num_states;
+    size = sizeof(float) * file->num_states * file->num_actions;
 
     /* Create and read matrix. */
-    if ((matrix = malloc(sizeof(float) *
-                    file->num_states * file->num_actions)) == NULL
-            || fread(matrix, sizeof(float),
-                file->num_states * file->num_actions, fp)
-            != file->num_states * file->num_actions) {
-        free(file);
-        free(matrix);
-        free(filename);
-        fclose(fp);
-        return -1;
-    }
+    if ((matrix = malloc(size)) == NULL
+            || fread(matrix, 1, size, fp) != size)
+        goto fail;
+
+    if ((flags & FILE_FLAG_CHECKSUM)
+            && crc32c(0, (const unsigned char *)matrix, size) != checksum)
+        goto fail;
 
     fclose(fp);
 
     file->matrix = matrix;
     file->filename = filename;
-    file->next = NULL;
 
     return statematrix_append(file);
+
+fail:
+    free(file);
+    free(matrix);
+    free(filename);
+
+    if (fp != NULL)
+        fclose(fp);
+    return -1;
 }
 
 int statematrix_save(int descriptor)
 {
     FILE *fp;
     StateFile *file;
+    char *temp;
+    unsigned char header[FILE_HEADER_SIZE];
+    int32_t magic, version, flags;
+    int64_t num_states;
+    float scale;
+    uint32_t checksum;
+    size_t size;
+    int written;
 
     if ((file = statematrix_get(descriptor)) == NULL)
         return -1;
 
-    if ((fp = fopen(file->filename, "wb")) == NULL)
+    size = sizeof(float) * file->num_states * file->num_actions;
+
+    magic = FILE_MAGIC;
+    version = FILE_VERSION;
+    num_states = file->num_states;
+    flags = FILE_FLAG_CHECKSUM;
+    scale = 1;
+    checksum = crc32c(0, (const unsigned char *)file->matrix, size);
+
+    memset(header, 0, sizeof(header));
+    memcpy(header + 0, &magic, sizeof(magic));
+    memcpy(header + 4, &version, sizeof(version));
+    memcpy(header + 8, &num_states, sizeof(num_states));
+    memcpy(header + 16, &file->num_actions, sizeof(file->num_actions));
+    memcpy(header + 20, &flags, sizeof(flags));
+    memcpy(header + 24, &file->default_q, sizeof(file->default_q));
+    memcpy(header + 28, &checksum, sizeof(checksum));
+    memcpy(header + 36, &scale, sizeof(scale));
+
+    /* Write next to the old file and move over it once complete. */
+    if ((temp = malloc(strlen(file->filename) + 5)) == NULL)
         return -1;
 
-    if (fwrite(file, sizeof(StateFile), 1, fp) != 1
-            || fwrite(file->matrix, sizeof(float),
-                file->num_states * file->num_actions, fp)
-            != file->num_states * file->num_actions) {
-        fclose(fp);
+    strcpy(temp, file->filename);
+    strcat(temp, ".tmp");
+
+    if ((fp = fopen(temp, "wb")) == NULL) {
+        free(temp);
         return -1;
     }
 
-    fclose(fp);
+    written = fwrite(header, sizeof(header), 1, fp) == 1
+        && fwrite(file->matrix, 1, size, fp) == size;
+
+    if (fclose(fp) != 0 || !written || rename(temp, file->filename) != 0) {
+        remove(temp);
+        free(temp);
+        return -1;
+    }
+
+    free(temp);
 
     return 0;
 }
@@ -178,6 +279,24 @@ void statematrix_set_q(int descriptor, long state, int action, float value)
         file->matrix[state * file->num_actions + action] = value;
 }
 
+int statematrix_compare_and_set_q(int descriptor, long state, int action,
+        float expected, float value)
+{
+    StateFile *file;
+    uint32_t *cell, expected_bits, value_bits;
+
+    if ((file = statematrix_get(descriptor)) == NULL)
+        return 0;
+
+    /* Compare and swap the bit patterns, floats have no atomic builtins. */
+    memcpy(&expected_bits, &expected, sizeof(float));
+    memcpy(&value_bits, &value, sizeof(float));
+    cell = (uint32_t *)&file->matrix[state * file->num_actions + action];
+
+    return __atomic_compare_exchange_n(cell, &expected_bits, value_bits, 0,
+            __ATOMIC_SEQ_CST, __ATOMIC_SEQ_CST);
+}
+
 float statematrix_get_max_q(int descriptor, long state)
 {
     float max, *current;
@@ -191,9 +310,8 @@ float statematrix_get_max_q(int descriptor, long state)
     current = &file->matrix[state * num_actions + 0];
     max = *current;
 
-    while (num_actions > 0) {
+    while (--num_actions > 0) {
         ++current;
-        --num_actions;
         if (*current > max)
             max = *current;
     }
@@ -201,6 +319,44 @@ float statematrix_get_max_q(int descriptor, long state)
     return max;
 }
 
+const float *statematrix_get_row(int descriptor, long state)
+{
+    StateFile *file;
+
+    return ((file = statematrix_get(descriptor)) == NULL) ?
+        NULL : &file->matrix[state * file->num_actions];
+}
+
+int statematrix_get_best_action(int descriptor, long state,
+        const uint64_t *mask, int num_words)
+{
+    StateFile *file;
+    const float *row;
+    float max;
+    uint64_t word;
+    int i, action, best;
+
+    if ((file = statematrix_get(descriptor)) == NULL)
+        return -1;
+
+    row = &file->matrix[state * file->num_actions];
+    best = -1;
+    max = 0;
+
+    /* Ties go to the lowest action, like StateMatrix.getBestAction. */
+    for (i = 0; i < num_words; ++i) {
+        for (word = mask[i]; word != 0; word &= word - 1) {
+            action = (i << 6) + __builtin_ctzll(word);
+            if (best < 0 || row[action] > max) {
+                best = action;
+                max = row[action];
+            }
+        }
+    }
+
+    return best;
+}
+
 long statematrix_get_num_states(int descriptor)
 {
     StateFile *file;
@@ -220,33 +376,47 @@ int statematrix_get_num_actions(int descriptor)
 int statematrix_append(StateFile *file)
 {
     int descriptor;
-    StateFile **nextp;
 
-    descriptor = 0;
+    descriptor = __atomic_fetch_add(&num_files, 1, __ATOMIC_SEQ_CST);
 
-    nextp = &fileRoot;
-    while (*nextp != NULL) {
-        nextp = &(*nextp)->next;
-        ++descriptor;
+    if (descriptor >= MAX_STATE_FILES) {
+        free(file->filename);
+        free(file->matrix);
+        free(file);
+        return -1;
     }
 
-    *nextp = file;
+    __atomic_store_n(&files[descriptor], file, __ATOMIC_RELEASE);
 
     return descriptor;
 }
 
 StateFile *statematrix_get(int descriptor)
 {
-    StateFile *file;
-    file = fileRoot;
-
-    if (descriptor < 0)
+    if (descriptor < 0 || descriptor >= MAX_STATE_FILES)
         return NULL;
 
-    while (descriptor > 0 && file != NULL) {
-        file = file->next;
-        --descriptor;
+    return __atomic_load_n(&files[descriptor], __ATOMIC_ACQUIRE);
+}
+
+uint32_t crc32c(uint32_t crc, const unsigned char *data, size_t length)
+{
+    uint32_t i, j, entry;
+
+    /* The last entry is filled last, it marks the table as complete. */
+    if (crc32c_table[255] == 0) {
+        for (i = 0; i < 256; ++i) {
+            entry = i;
+            for (j = 0; j < 8; ++j)
+                entry = (entry >> 1) ^ (0x82f63b78 & -(entry & 1));
+            crc32c_table[i] = entry;
+        }
     }
 
-    return file;
+    crc = ~crc;
+
+    while (length-- > 0)
+        crc = (crc >> 8) ^ crc32c_table[(crc ^ *data++) & 0xff];
+
+    return ~crc;
 }
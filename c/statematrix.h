@@ -19,9 +19,14 @@
  * dotsnboxes. If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
+#include <stdint.h>
+
 /* Default Q value when creating new state matrices. */
 #define DEFAULT_Q_VALUE (0)
 
+/* The maximum number of state matrices loaded at the same time. */
+#define MAX_STATE_FILES (256)
+
 /**
  * Create a new state matrix.
  *
@@ -78,6 +83,23 @@ float statematrix_get_q(int descriptor, long state, int action);
  */
 void statematrix_set_q(int descriptor, long state, int action, float value);
 
+/**
+ * Atomically replace a Q value in the state matrix referenced, provided it
+ * still holds the expected value.
+ *
+ * Values are compared by their bit patterns, like Java's
+ * Float.floatToRawIntBits.
+ *
+ * @param descriptor A reference to the state matrix in question.
+ * @param state The state part of the state-action-pair.
+ * @param action The action part of the state-action-pair.
+ * @param expected The value the Q value is expected to hold.
+ * @param value The new Q value of the state-action-pair.
+ * @return 1 iff the value was replaced, 0 otherwise.
+ */
+int statematrix_compare_and_set_q(int descriptor, long state, int action,
+        float expected, float value);
+
 /**
  * Retrieve the maximum value for the given state in the referenced state
  * matrix.
@@ -89,6 +111,33 @@ void statematrix_set_q(int descriptor, long state, int action, float value);
  */
 float statematrix_get_max_q(int descriptor, long state);
 
+/**
+ * Retrieve all Q values of a state in the referenced state matrix.
+ *
+ * The returned row holds one value per action and points into the matrix
+ * itself, so it stays valid as long as the matrix is loaded.
+ *
+ * @param descriptor A reference to the state matrix in question.
+ * @param state The state in question.
+ * @return a pointer to the Q values of the state, NULL iff not successful.
+ */
+const float *statematrix_get_row(int descriptor, long state);
+
+/**
+ * Find the action with the highest Q value among a set of actions.
+ *
+ * The set is a bit mask, action i is included iff bit i % 64 of word i / 64
+ * is set. Ties go to the lowest action.
+ *
+ * @param descriptor A reference to the state matrix in question.
+ * @param state The state in question.
+ * @param mask The words of the action mask.
+ * @param num_words The number of words in the mask.
+ * @return the best action, -1 if the mask is empty or not successful.
+ */
+int statematrix_get_best_action(int descriptor, long state,
+        const uint64_t *mask, int num_words);
+
 /**
  * Retrieve the number of states for the referenced state matrix.
  *
@@ -3,7 +3,9 @@ package dots;
 import dots.agent.*;
 import dots.agent.q.*;
 import dots.engine.*;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.logging.*;
 
@@ -25,6 +27,34 @@ public class ArgHandler
         int height = Grid.DEFAULT_HEIGHT;
         int resultsInterval = -1;
         String logLevel = null;
+        String backend = "native";
+        boolean useSymmetry = false;
+        int selfPlayThreads = 0;
+        int scalingThreads = 0;
+        long checkpointInterval = 0;
+        int compactionInterval =
+            CheckpointingStateMatrix.DEFAULT_COMPACTION_INTERVAL;
+        SelfPlayExecutor.UpdatePolicy updatePolicy =
+            SelfPlayExecutor.UpdatePolicy.STRIPED;
+        String policyFilename = null;
+        PolicyAgent.Fallback fallback = PolicyAgent.Fallback.FIRST;
+        List<SweepExecutor.Configuration> sweep = null;
+        int sweepThreads = Runtime.getRuntime().availableProcessors();
+        int evalRounds = 1000;
+        String sweepFilename = "sweep.csv";
+        long statsInterval = 1000;
+        int replayCapacity = 0;
+        int replayBatchSize = 32;
+        ReplayBuffer.Sampling replaySampling = ReplayBuffer.Sampling.UNIFORM;
+        float lambda = 0;
+        EligibilityTraces.Mode traceMode = EligibilityTraces.Mode.WATKINS;
+        String statsFilename = null;
+        String solutionFilename = null;
+        BatchSimulator.Policy[] batchPolicies = null;
+        int batchSize = BatchSimulator.DEFAULT_BATCH_SIZE;
+        int batchThreads = Runtime.getRuntime().availableProcessors();
+        boolean batchVector = true;
+        int solverThreads = Runtime.getRuntime().availableProcessors();
 
         try {
             for (int i = 0; i < args.length; ++i)
@@ -53,6 +83,208 @@ public class ArgHandler
                 {
                     resultsInterval = Integer.parseInt(args[++i]);
                 }
+                else if (args[i].equalsIgnoreCase("--backend"))
+                {
+                    backend = args[++i];
+                }
+                else if (args[i].equalsIgnoreCase("--symmetry"))
+                {
+                    useSymmetry = true;
+                }
+                else if (args[i].equalsIgnoreCase("--selfplay")
+                        || args[i].equalsIgnoreCase("--scaling"))
+                {
+                    boolean scaling = args[i].equalsIgnoreCase("--scaling");
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        if (scaling)
+                            scalingThreads = Integer.parseInt(params[0]);
+                        else
+                            selfPlayThreads = Integer.parseInt(params[0]);
+
+                        if (params.length > 1)
+                            updatePolicy = SelfPlayExecutor.UpdatePolicy.valueOf(
+                                    params[1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        logger.severe(String.format("Expected %s " +
+                                    "<threads>[:racy|striped|delta|atomic].", args[i - 1]));
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--checkpoint"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        checkpointInterval = (long) (1000 *
+                                Double.parseDouble(params[0]));
+                        if (params.length > 1)
+                            compactionInterval = Integer.parseInt(params[1]);
+                    } catch (NumberFormatException e) {
+                        checkpointInterval = -1;
+                    }
+
+                    if (checkpointInterval <= 0 || compactionInterval <= 0) {
+                        logger.severe("Expected --checkpoint " +
+                                "<seconds>[:<checkpoints between compactions>].");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--compile-policy"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        policyFilename = params[0].trim();
+                        if (params.length > 1)
+                            fallback = PolicyAgent.Fallback.valueOf(
+                                    params[1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        policyFilename = "";
+                    }
+
+                    if (policyFilename.length() == 0) {
+                        logger.severe("Expected --compile-policy " +
+                                "<filename>[:first|random].");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--sweep"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        sweep = SweepExecutor.grid(parseFloats(params[0]),
+                                parseFloats(params[1]), parseFloats(params[2]));
+                        if (params.length > 3)
+                            sweepThreads = Integer.parseInt(params[3]);
+                        if (params.length > 4)
+                            evalRounds = Integer.parseInt(params[4]);
+                    } catch (RuntimeException e) {
+                        sweep = null;
+                    }
+
+                    if (sweep == null || sweepThreads <= 0 || evalRounds < 0) {
+                        logger.severe("Expected --sweep <discount factors>:" +
+                                "<learning rates>:<exploration quotients>" +
+                                "[:<threads>[:<evaluation rounds>]], with " +
+                                "comma separated values.");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--sweep-out"))
+                {
+                    sweepFilename = args[++i];
+                }
+                else if (args[i].equalsIgnoreCase("--stats"))
+                {
+                    String[] params = args[++i].split(":", 2);
+
+                    try {
+                        statsInterval = (long) (1000 *
+                                Double.parseDouble(params[0]));
+                    } catch (NumberFormatException e) {
+                        statsInterval = -1;
+                    }
+
+                    if (statsInterval <= 0) {
+                        logger.severe("Expected --stats " +
+                                "<seconds>[:<filename>].");
+                        return;
+                    }
+
+                    if (params.length > 1)
+                        statsFilename = params[1];
+                }
+                else if (args[i].equalsIgnoreCase("--replay"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        replayCapacity = Integer.parseInt(params[0]);
+                        if (params.length > 1)
+                            replaySampling = ReplayBuffer.Sampling.valueOf(
+                                    params[1].toUpperCase());
+                        if (params.length > 2)
+                            replayBatchSize = Integer.parseInt(params[2]);
+                    } catch (IllegalArgumentException e) {
+                        replayCapacity = -1;
+                    }
+
+                    if (replayCapacity <= 0 || replayBatchSize <= 0) {
+                        logger.severe("Expected --replay <capacity>" +
+                                "[:uniform|prioritized[:<batch size>]].");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--traces"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        lambda = Float.parseFloat(params[0]);
+                        if (params.length > 1)
+                            traceMode = EligibilityTraces.Mode.valueOf(
+                                    params[1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        lambda = -1;
+                    }
+
+                    if (!(lambda > 0 && lambda <= 1)) {
+                        logger.severe("Expected --traces <lambda in (0, 1]>" +
+                                "[:watkins|sarsa].");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--batch"))
+                {
+                    String[] params = args[++i].split(":");
+                    String[] policies = params[0].split(",");
+
+                    try {
+                        batchPolicies = new BatchSimulator.Policy[] {
+                            BatchSimulator.Policy.valueOf(
+                                    policies[0].trim().toUpperCase()),
+                            BatchSimulator.Policy.valueOf(
+                                    policies[1].trim().toUpperCase())
+                        };
+                        if (params.length > 1)
+                            batchSize = Integer.parseInt(params[1]);
+                        if (params.length > 2)
+                            batchThreads = Integer.parseInt(params[2]);
+                        if (params.length > 3)
+                            batchVector = params[3].equalsIgnoreCase("vector");
+                    } catch (RuntimeException e) {
+                        batchPolicies = null;
+                    }
+
+                    if (batchPolicies == null || policies.length != 2
+                            || batchSize <= 0 || batchThreads <= 0) {
+                        logger.severe("Expected --batch " +
+                                "<random|greedy|table>,<random|greedy|table>" +
+                                "[:<batch size>[:<threads>[:vector|scalar]]].");
+                        return;
+                    }
+                }
+                else if (args[i].equalsIgnoreCase("--solve"))
+                {
+                    String[] params = args[++i].split(":");
+
+                    try {
+                        solutionFilename = params[0].trim();
+                        if (params.length > 1)
+                            solverThreads = Integer.parseInt(params[1]);
+                    } catch (NumberFormatException e) {
+                        solverThreads = -1;
+                    }
+
+                    if (solutionFilename.length() == 0 || solverThreads <= 0) {
+                        logger.severe("Expected --solve " +
+                                "<filename>[:<threads>].");
+                        return;
+                    }
+                }
                 else
                 {
                     logger.severe(String.format("Illegal parameter \"%s\".", args[i]));
@@ -70,7 +302,54 @@ public class ArgHandler
         if (logLevel != null)
             bootstrapper.setLogLevel(Level.parse(logLevel));
 
+        MetricsReporter metrics;
+
+        // Counters are always collected, this only decides how often they
+        // are sampled and whether samples also go to a file.
+        try {
+            metrics = new MetricsReporter(statsInterval, statsFilename);
+        } catch (IOException e) {
+            logger.severe(String.format("Failed to open '%s': %s",
+                        statsFilename, e.getMessage()));
+            return;
+        }
+
+        metrics.register();
+        bootstrapper.addShutdownHook(metrics);
+
         Grid grid = new Grid(width, height);
+        Symmetry symmetry = null;
+
+        if (useSymmetry) {
+            try {
+                symmetry = new Symmetry(width, height);
+            } catch (IllegalArgumentException e) {
+                logger.severe(e.getMessage());
+                return;
+            }
+        }
+
+        if (sweep != null) {
+            if (grid.getNumStates() > Integer.MAX_VALUE) {
+                logger.severe(String.format("A board with %d lines is too " +
+                            "large for a sweep.", grid.getSize()));
+                return;
+            }
+
+            runSweep(new SweepExecutor(width, height, symmetry, backend,
+                        getDefaultValue(backend), numGames, evalRounds,
+                        System.currentTimeMillis()), sweep, sweepThreads,
+                    sweepFilename);
+            return;
+        }
+
+        if (solutionFilename != null) {
+            runSolver(width, height, solverThreads, solutionFilename);
+            return;
+        }
+
+        StateMatrix selfPlayMatrix = null;
+        SelfPlayExecutor.AgentFactory selfPlayFactory = null;
 
         for (String param : agentParams) {
             String[] params = param.split(":");
@@ -79,12 +358,15 @@ public class ArgHandler
             ClassLoader classLoader = ArgHandler.class.getClassLoader();
             Agent agent = null;
 
-            if (className.equals("dots.agent.QLearningAgent")) {
+            if (className.equals("dots.agent.QLearningAgent")
+                    || className.equals("dots.agent.AfterstateAgent")) {
                 StateMatrix matrix = null;
+                boolean afterstate = className.equals(
+                        "dots.agent.AfterstateAgent");
 
                 if (params.length != 3 && params.length != 6) {
-                    logger.severe("Expected --agent " +
-                            "QlearningAgent:<training>:<filename>" +
+                    logger.severe("Expected --agent " + params[0] +
+                            ":<training>:<filename>" +
                             "[:<discount factor>:<learning rate>:<exploration quotient>]");
                     return;
                 }
@@ -105,9 +387,15 @@ public class ArgHandler
                     return;
                 }
 
-                float learningRate = QLearningAgent.DEFAULT_LEARNING_RATE;
-                float discountFactor = QLearningAgent.DEFAULT_DISCOUNT_FACTOR;
-                float explorationQuotient = QLearningAgent.DEFAULT_EXPLORATION_QUOTIENT;
+                float learningRate = afterstate
+                    ? AfterstateAgent.DEFAULT_LEARNING_RATE
+                    : QLearningAgent.DEFAULT_LEARNING_RATE;
+                float discountFactor = afterstate
+                    ? AfterstateAgent.DEFAULT_DISCOUNT_FACTOR
+                    : QLearningAgent.DEFAULT_DISCOUNT_FACTOR;
+                float explorationQuotient = afterstate
+                    ? AfterstateAgent.DEFAULT_EXPLORATION_QUOTIENT
+                    : QLearningAgent.DEFAULT_EXPLORATION_QUOTIENT;
 
                 if (params.length == 6) {
 //                	logger.info(String.format("got params3,4 = %s, %s", params[3], params[4]));
@@ -143,32 +431,156 @@ public class ArgHandler
                     logger.fine(String.format("Loading file name '%s'.", filename));
 
                     try {
-                        matrix = NativeStateMatrix.load(filename,
-                                grid.getMaxIdentifier() + 1, grid.getSize());
+                        // Afterstate values are one per board, a single
+                        // action column instead of one per line.
+                        matrix = openMatrix(backend, filename,
+                                grid.getNumStates(),
+                                afterstate ? 1 : grid.getSize(),
+                                grid.getSize());
+
+                        // Rows changed since the last checkpoint go to an
+                        // append only log next to the matrix file.
+                        if (checkpointInterval > 0)
+                            matrix = new CheckpointingStateMatrix(matrix,
+                                    filename + ".log", checkpointInterval,
+                                    compactionInterval);
+                    } catch (IllegalArgumentException e) {
+                        logger.severe(e.getMessage());
+                        return;
                     } catch (IOException e) {
-                        logger.fine("File not found. Creating new matrix.");
-
-                        try {
-                            matrix = NativeStateMatrix.create(filename,
-                                    grid.getMaxIdentifier() + 1, grid.getSize());
-                        } catch (OutOfMemoryError e2) {
-                            logger.severe("Out of memory. Terminating.");
-                            return;
-                        }
+                        logger.severe(String.format("Failed to open '%s': %s",
+                                    filename, e.getMessage()));
+                        return;
                     } catch (OutOfMemoryError e) {
                         logger.severe("Out of memory. Terminating.");
                         return;
                     }
 
+                    // Games run on their own threads, so a table shared by
+                    // agents of different games needs atomic updates.
+                    if (isSharedAcrossGames(agentParams, filename))
+                        matrix = new ConcurrentStateMatrix(matrix);
+
                     matrices.put(filename, matrix);
+                    metrics.addMatrix(matrix);
                     bootstrapper.addShutdownHook(matrix);
                 }
 
-                agent = new QLearningAgent(training, matrix, discountFactor,
-                        learningRate, explorationQuotient);
+                selfPlayMatrix = matrix;
+                selfPlayFactory = afterstate
+                    ? afterstateFactory(training, grid.isWide(),
+                            discountFactor, learningRate, explorationQuotient,
+                            symmetry)
+                    : qLearningFactory(training, discountFactor,
+                            learningRate, explorationQuotient, symmetry,
+                            replayCapacity, replaySampling, replayBatchSize,
+                            lambda, traceMode);
+                agent = selfPlayFactory.create(matrix);
+            } else if (className.equals("dots.agent.PolicyAgent")) {
+                if (params.length != 2 || params[1].trim().length() == 0) {
+                    logger.severe("Expected --agent PolicyAgent:<filename>");
+                    return;
+                }
+
+                try {
+                    PolicyAgent policyAgent = new PolicyAgent(params[1].trim());
+
+                    if (policyAgent.getWidth() != width
+                            || policyAgent.getHeight() != height) {
+                        logger.severe(String.format("Policy '%s' was " +
+                                    "compiled for a %dx%d board.", params[1],
+                                    policyAgent.getWidth(),
+                                    policyAgent.getHeight()));
+                        return;
+                    }
+
+                    agent = policyAgent;
+                } catch (IOException e) {
+                    logger.severe(String.format("Failed to open '%s': %s",
+                                params[1], e.getMessage()));
+                    return;
+                }
+            } else if (className.equals("dots.agent.MctsAgent")) {
+                long playouts = MctsAgent.DEFAULT_PLAYOUTS;
+                long moveMillis = 0;
+                int threads = Runtime.getRuntime().availableProcessors();
+                int poolBits = MctsAgent.DEFAULT_POOL_BITS;
+
+                try {
+                    if (params.length > 1) {
+                        String budget = params[1].trim();
+
+                        if (budget.endsWith("ms")) {
+                            playouts = 0;
+                            moveMillis = Long.parseLong(
+                                    budget.substring(0, budget.length() - 2));
+                        } else {
+                            playouts = Long.parseLong(budget);
+                        }
+                    }
+                    if (params.length > 2)
+                        threads = Integer.parseInt(params[2]);
+                    if (params.length > 3)
+                        poolBits = Integer.parseInt(params[3]);
+
+                    agent = new MctsAgent(width, height, playouts, moveMillis,
+                            threads, poolBits);
+                } catch (IllegalArgumentException e) {
+                    logger.severe("Expected --agent MctsAgent" +
+                            "[:<playouts>|<milliseconds>ms[:<threads>" +
+                            "[:<log2 pool size>]]]. " + e.getMessage());
+                    return;
+                }
+            } else if (className.equals("dots.agent.AlphaBetaAgent")) {
+                long moveMillis = AlphaBetaAgent.DEFAULT_MOVE_MILLIS;
+                int tableBits = TranspositionTable.DEFAULT_SIZE_BITS;
+
+                try {
+                    if (params.length > 1)
+                        moveMillis = Long.parseLong(params[1]);
+                    if (params.length > 2)
+                        tableBits = Integer.parseInt(params[2]);
+
+                    agent = new AlphaBetaAgent(width, height, moveMillis,
+                            new TranspositionTable(tableBits));
+                } catch (IllegalArgumentException e) {
+                    logger.severe("Expected --agent AlphaBetaAgent" +
+                            "[:<milliseconds per move>[:<log2 table size>]]. "
+                            + e.getMessage());
+                    return;
+                }
+            } else if (className.equals("dots.agent.SolverAgent")) {
+                if (params.length != 2 || params[1].trim().length() == 0) {
+                    logger.severe("Expected --agent SolverAgent:<filename>");
+                    return;
+                }
+
+                try {
+                    SolverAgent solverAgent = new SolverAgent(params[1].trim());
+
+                    if (solverAgent.getWidth() != width
+                            || solverAgent.getHeight() != height) {
+                        logger.severe(String.format("Solution '%s' was " +
+                                    "computed for a %dx%d board.", params[1],
+                                    solverAgent.getWidth(),
+                                    solverAgent.getHeight()));
+                        return;
+                    }
+
+                    agent = solverAgent;
+                } catch (IOException e) {
+                    logger.severe(String.format("Failed to open '%s': %s",
+                                params[1], e.getMessage()));
+                    return;
+                }
             } else {
                 try {
-                    agent = (Agent) classLoader.loadClass(className).newInstance();
+                    Object instance = classLoader.loadClass(className).newInstance();
+
+                    if (instance instanceof SetAgent)
+                        agent = new SetAgentAdapter((SetAgent) instance);
+                    else
+                        agent = (Agent) instance;
                 } catch (InstantiationException e) {
                     e.printStackTrace();
                     return;
@@ -184,6 +596,56 @@ public class ArgHandler
             agents.add(agent);
         }
 
+        if (policyFilename != null) {
+            if (agents.size() != 1 || selfPlayMatrix == null
+                    || !(agents.get(0) instanceof QLearningAgent)) {
+                logger.severe("Compiling a policy needs exactly one " +
+                        "QLearningAgent.");
+                return;
+            }
+
+            try {
+                long numPolicyStates = PolicyAgent.compile(selfPlayMatrix,
+                        width, height, symmetry, fallback, policyFilename);
+                System.out.println(String.format("Compiled %d states to '%s'.",
+                            numPolicyStates, policyFilename));
+            } catch (IllegalArgumentException e) {
+                logger.severe(e.getMessage());
+            } catch (IOException e) {
+                logger.severe(String.format("Failed to write '%s': %s",
+                            policyFilename, e.getMessage()));
+            }
+            return;
+        }
+
+        if (batchPolicies != null) {
+            boolean table = batchPolicies[0] == BatchSimulator.Policy.TABLE
+                || batchPolicies[1] == BatchSimulator.Policy.TABLE;
+
+            if (table && (agents.size() != 1 || selfPlayMatrix == null
+                        || !(agents.get(0) instanceof QLearningAgent))) {
+                logger.severe("The table policy needs exactly one " +
+                        "QLearningAgent.");
+                return;
+            }
+
+            runBatch(width, height, batchPolicies, selfPlayMatrix, symmetry,
+                    batchSize, batchVector, batchThreads, numGames);
+            return;
+        }
+
+        if (selfPlayThreads > 0 || scalingThreads > 0) {
+            if (agents.size() != 1 || selfPlayFactory == null) {
+                logger.severe("Self-play needs exactly one QLearningAgent.");
+                return;
+            }
+
+            runSelfPlay(new SelfPlayExecutor(width, height, selfPlayMatrix,
+                        updatePolicy, selfPlayFactory), numGames,
+                    selfPlayThreads, scalingThreads);
+            return;
+        }
+
         if (agents.size() == 0) {
             logger.severe("At least two agents needed.");
             return;
@@ -195,8 +657,320 @@ public class ArgHandler
         for (int i = 0; i < agents.size(); i += 2) {
             DotsNBoxes game = new DotsNBoxes(grid, agents.get(i),
                     agents.get(i + 1), numGames, resultsInterval);
+            metrics.addGame(game);
             bootstrapper.startGame(game);
             grid = new Grid(width, height);
         }
     }
+
+    
+    private static boolean isSharedAcrossGames(List<String> agentParams,
+            String filename)
+    {
+        int game = -1;
+
+        for (int i = 0; i < agentParams.size(); ++i) {
+            String[] params = agentParams.get(i).split(":");
+
+            if (params.length < 3 || !(params[0].equals("QLearningAgent")
+                        || params[0].equals("AfterstateAgent"))
+                    || !params[2].trim().equals(filename))
+                continue;
+
+            if (game != -1 && game != i / 2)
+                return true;
+            game = i / 2;
+        }
+
+        return false;
+    }
+
+    
+    private static SelfPlayExecutor.AgentFactory qLearningFactory(
+            final boolean training, final float discountFactor,
+            final float learningRate, final float explorationQuotient,
+            final Symmetry symmetry, final int replayCapacity,
+            final ReplayBuffer.Sampling replaySampling,
+            final int replayBatchSize, final float lambda,
+            final EligibilityTraces.Mode traceMode)
+    {
+        return new SelfPlayExecutor.AgentFactory() {
+            @Override
+            public Agent create(StateMatrix matrix)
+            {
+                QLearningAgent agent = new QLearningAgent(training, matrix,
+                        discountFactor, learningRate, explorationQuotient,
+                        symmetry);
+
+                // Each agent keeps its own transitions.
+                if (training && replayCapacity > 0)
+                    agent.setReplay(new ReplayBuffer(replayCapacity,
+                                matrix.getNumActions(), replaySampling),
+                            replayBatchSize);
+
+                if (training && lambda > 0)
+                    agent.setTraces(new EligibilityTraces(traceMode, lambda));
+
+                return agent;
+            }
+        };
+    }
+
+    
+    private static SelfPlayExecutor.AgentFactory afterstateFactory(
+            final boolean training, final boolean wide,
+            final float discountFactor, final float learningRate,
+            final float explorationQuotient, final Symmetry symmetry)
+    {
+        return new SelfPlayExecutor.AgentFactory() {
+            @Override
+            public Agent create(StateMatrix matrix)
+            {
+                return new AfterstateAgent(training, matrix, wide,
+                        discountFactor, learningRate, explorationQuotient,
+                        symmetry);
+            }
+        };
+    }
+
+    
+    private static void runSelfPlay(SelfPlayExecutor executor, int numGames,
+            int selfPlayThreads, int scalingThreads)
+    {
+        try {
+            if (selfPlayThreads > 0) {
+                System.out.println(String.format(
+                            "%d threads: %.0f rounds/s", selfPlayThreads,
+                            executor.run(selfPlayThreads, numGames)));
+            }
+
+            // Doubling thread counts, so the scaling curve can be read off
+            // directly. The last step is always the requested maximum.
+            for (int threads = 1; scalingThreads > 0; threads *= 2) {
+                threads = Math.min(threads, scalingThreads);
+                System.out.println(String.format(
+                            "%d threads: %.0f rounds/s", threads,
+                            executor.run(threads, numGames)));
+                if (threads == scalingThreads)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            logger.fine("Self-play interrupted.");
+        }
+    }
+
+    
+    private static void runSweep(SweepExecutor executor,
+            List<SweepExecutor.Configuration> configurations, int numThreads,
+            String filename)
+    {
+        long start = System.nanoTime();
+
+        try {
+            executor.run(configurations, numThreads, filename);
+            System.out.println(String.format("%d configurations in %.1fs, " +
+                        "results in '%s'.", configurations.size(),
+                        (System.nanoTime() - start) / 1e9, filename));
+        } catch (IOException e) {
+            logger.severe(String.format("Failed to write '%s': %s", filename,
+                        e.getMessage()));
+        } catch (InterruptedException e) {
+            logger.fine("Sweep interrupted.");
+        }
+    }
+
+    
+    private static void runBatch(int width, int height,
+            BatchSimulator.Policy[] policies, StateMatrix matrix,
+            Symmetry symmetry, int batchSize, boolean vector, int numThreads,
+            long numGames)
+    {
+        try {
+            BatchSimulator.Result result = BatchSimulator.run(width, height,
+                    policies[0], policies[1], matrix, symmetry, batchSize,
+                    vector, numThreads, numGames, System.currentTimeMillis());
+
+            System.out.println(String.format("%d games, %d moves in %.2fs, " +
+                        "%.1fM moves/s | %s: %d wins | %s: %d wins | " +
+                        "%d ties", result.games, result.moves,
+                        result.nanos / 1e9, result.getMovesPerSecond() / 1e6,
+                        policies[0], result.wins[0], policies[1],
+                        result.wins[1], result.ties));
+        } catch (IllegalArgumentException e) {
+            logger.severe(e.getMessage());
+        } catch (InterruptedException e) {
+            logger.fine("Batch simulation interrupted.");
+        }
+    }
+
+    
+    private static void runSolver(int width, int height, int numThreads,
+            String filename)
+    {
+        long start = System.nanoTime();
+
+        try {
+            int value = new RetrogradeSolver(width, height, numThreads)
+                .solve(filename);
+            System.out.println(String.format("Solved %dx%d in %.1fs, the " +
+                        "first player's margin with perfect play is %+d " +
+                        "boxes. Results in '%s'.", width, height,
+                        (System.nanoTime() - start) / 1e9, value, filename));
+        } catch (IllegalArgumentException e) {
+            logger.severe(e.getMessage());
+        } catch (IOException e) {
+            logger.severe(String.format("Failed to write '%s': %s", filename,
+                        e.getMessage()));
+        }
+    }
+
+    
+    private static float[] parseFloats(String list)
+    {
+        String[] values = list.split(",");
+        float[] floats = new float[values.length];
+
+        for (int i = 0; i < values.length; ++i)
+            floats[i] = Float.parseFloat(values[i].trim());
+
+        return floats;
+    }
+
+    
+    // The value of untouched rows in each backend, only the array backend
+    // does not start at 0.
+    private static float getDefaultValue(String backend)
+    {
+        return backend.equals("array") ? ArrayStateMatrix.DEFAULT_Q_VALUE : 0;
+    }
+
+    
+    private static StateMatrix openMatrix(String backend, String filename,
+            long numStates, int numActions, int numLines) throws IOException
+    {
+        // Dense backends index rows by the identifier itself, which is only
+        // possible while every identifier has its own row.
+        boolean paged = backend.equals("mapped") || backend.equals("foreign")
+            || backend.startsWith("quantized");
+        boolean dense = paged || backend.equals("native")
+            || backend.equals("array");
+        long maxStates = paged
+            ? Long.MAX_VALUE / (4L * numActions) : Integer.MAX_VALUE;
+
+        if (dense && numStates > maxStates)
+            throw new IllegalArgumentException(String.format(
+                        "A board with %d lines is too large for the %s " +
+                        "backend, use --backend sparse.", numLines, backend));
+
+        if (backend.equals("native")) {
+            try {
+                return NativeStateMatrix.load(filename, numStates, numActions);
+            } catch (IOException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return NativeStateMatrix.create(filename, numStates, numActions);
+            }
+        } else if (backend.equals("array")) {
+            try {
+                return ArrayStateMatrix.load(filename, numStates, numActions);
+            } catch (FileNotFoundException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return ArrayStateMatrix.create(filename, numStates, numActions);
+            }
+        } else if (backend.equals("mapped")) {
+            try {
+                return MappedStateMatrix.load(filename, numStates, numActions);
+            } catch (FileNotFoundException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return MappedStateMatrix.create(filename, numStates, numActions);
+            }
+        } else if (backend.equals("foreign")) {
+            try {
+                return openForeign("load", filename, numStates, numActions);
+            } catch (FileNotFoundException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return openForeign("create", filename, numStates, numActions);
+            }
+        } else if (backend.startsWith("quantized")) {
+            String[] params = backend.split(":");
+            QuantizedStateMatrix.Encoding encoding =
+                QuantizedStateMatrix.Encoding.HALF;
+            QuantizedStateMatrix.Rounding rounding =
+                QuantizedStateMatrix.Rounding.STOCHASTIC;
+            float scale;
+
+            try {
+                if (params.length > 1)
+                    encoding = QuantizedStateMatrix.Encoding.valueOf(
+                            params[1].toUpperCase());
+                if (params.length > 2)
+                    rounding = QuantizedStateMatrix.Rounding.valueOf(
+                            params[2].toUpperCase());
+                scale = params.length > 3
+                    ? Float.parseFloat(params[3]) : encoding.defaultScale;
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Expected --backend " +
+                        "quantized[:half|int16|int8[:nearest|stochastic" +
+                        "[:<scale>]]]");
+            }
+
+            try {
+                return QuantizedStateMatrix.load(filename, numStates,
+                        numActions, encoding, rounding);
+            } catch (FileNotFoundException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return QuantizedStateMatrix.create(filename, numStates,
+                        numActions, encoding, rounding, scale);
+            }
+        } else if (backend.startsWith("sparse")) {
+            String[] params = backend.split(":");
+            float loadFactor = SparseStateMatrix.DEFAULT_LOAD_FACTOR;
+            int growthFactor = SparseStateMatrix.DEFAULT_GROWTH_FACTOR;
+
+            try {
+                if (params.length > 1)
+                    loadFactor = Float.parseFloat(params[1]);
+                if (params.length > 2)
+                    growthFactor = Integer.parseInt(params[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected --backend " +
+                        "sparse[:<load factor>[:<growth factor>]]");
+            }
+
+            try {
+                return SparseStateMatrix.load(filename, numStates, numActions,
+                        loadFactor, growthFactor);
+            } catch (FileNotFoundException e) {
+                logger.fine("File not found. Creating new matrix.");
+                return SparseStateMatrix.create(filename, numStates, numActions,
+                        loadFactor, growthFactor);
+            }
+        }
+
+        throw new IllegalArgumentException(String.format(
+                    "Unknown backend \"%s\", expected native | array | " +
+                    "mapped | foreign | quantized[:<encoding>[:<rounding>" +
+                    "[:<scale>]]] | sparse[:<load factor>[:<growth factor>]].",
+                    backend));
+    }
+
+    
+    private static StateMatrix openForeign(String method, String filename,
+            long numStates, int numActions) throws IOException
+    {
+        // ForeignStateMatrix is built by the fcompile target against a newer
+        // JDK than the rest, so it is only looked up when asked for.
+        try {
+            return (StateMatrix) Class.forName("dots.agent.q.ForeignStateMatrix")
+                .getMethod(method, String.class, long.class, int.class)
+                .invoke(null, filename, numStates, numActions);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalArgumentException("The foreign backend needs " +
+                    "the fcompile target and a JDK 21 run with " +
+                    "--enable-preview.");
+        }
+    }
 }
@@ -97,7 +97,9 @@ public class Bootstrapper extends Thread
         consoleHandler.setLevel(Level.INFO);
         consoleHandler.setFormatter(new ColorFormatter());
 
-        logger.setLevel(Level.ALL);
+        // Keep the logger level in line with the handler, otherwise every
+        // guarded log message is still formatted and then dropped.
+        logger.setLevel(Level.INFO);
         logger.addHandler(consoleHandler);
         logger.setUseParentHandlers(false);
     }
@@ -105,6 +107,7 @@ public class Bootstrapper extends Thread
     
     public void setLogLevel(Level level) 
     {
+        logger.setLevel(level);
         consoleHandler.setLevel(level);
     }
 
@@ -0,0 +1,152 @@
+package dots.agent;
+
+import java.util.HashSet;
+import java.util.Set;
+
+
+public class ActionSet
+{
+    
+    private final long[] words;
+
+    
+    private final int numActions;
+
+    
+    private int size;
+
+    
+    public ActionSet(int numActions)
+    {
+        this.numActions = numActions;
+        this.words = new long[(numActions + 63) >>> 6];
+    }
+
+    
+    public int size()
+    {
+        return size;
+    }
+
+    
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    
+    public boolean contains(int action)
+    {
+        return action >= 0 && action < numActions
+            && (words[action >>> 6] & (1L << action)) != 0;
+    }
+
+    
+    public int next(int from)
+    {
+        if (from < 0)
+            from = 0;
+
+        int i = from >>> 6;
+        if (i >= words.length)
+            return -1;
+
+        long word = words[i] & (-1L << from);
+
+        while (word == 0) {
+            if (++i == words.length)
+                return -1;
+            word = words[i];
+        }
+
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    
+    public int get(int index)
+    {
+        for (int i = 0; i < words.length; ++i) {
+            long word = words[i];
+            int count = Long.bitCount(word);
+
+            if (index < count) {
+                for (; index > 0; --index)
+                    word &= word - 1;
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+
+            index -= count;
+        }
+
+        throw new IndexOutOfBoundsException();
+    }
+
+    
+    public long[] getWords()
+    {
+        return words;
+    }
+
+    
+    public void add(int action)
+    {
+        long bit = 1L << action;
+
+        if ((words[action >>> 6] & bit) == 0) {
+            words[action >>> 6] |= bit;
+            ++size;
+        }
+    }
+
+    
+    public void remove(int action)
+    {
+        long bit = 1L << action;
+
+        if ((words[action >>> 6] & bit) != 0) {
+            words[action >>> 6] &= ~bit;
+            --size;
+        }
+    }
+
+    
+    public void fill()
+    {
+        for (int i = 0; i < words.length; ++i)
+            words[i] = -1L;
+
+        if ((numActions & 63) != 0)
+            words[words.length - 1] = (1L << numActions) - 1;
+
+        size = numActions;
+    }
+
+    
+    public void copyFrom(ActionSet other)
+    {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+        size = other.size;
+    }
+
+    
+    public void clear()
+    {
+        for (int i = 0; i < words.length; ++i)
+            words[i] = 0;
+        size = 0;
+    }
+
+    
+    public Set<Integer> toSet(Set<Integer> target)
+    {
+        if (target == null)
+            target = new HashSet<Integer>();
+        else
+            target.clear();
+
+        for (int a = next(0); a >= 0; a = next(a + 1))
+            target.add(a);
+
+        return target;
+    }
+}
@@ -0,0 +1,175 @@
+package dots.agent;
+
+import dots.agent.q.StateMatrix;
+import dots.engine.Grid;
+import dots.engine.StateKey;
+import dots.engine.Symmetry;
+import dots.util.Metrics;
+import java.util.*;
+import java.util.logging.*;
+
+
+public class AfterstateAgent implements Agent
+{
+    
+    public static final float DEFAULT_DISCOUNT_FACTOR = 0.9f;
+
+    
+    public static final float DEFAULT_LEARNING_RATE = 0.2f;
+
+    
+    public static final float DEFAULT_EXPLORATION_QUOTIENT = 0;
+
+    
+    // One value per board, kept in column 0 of a single action matrix.
+    private final StateMatrix values;
+
+    
+    private final boolean training;
+
+    
+    private final boolean wide;
+
+    
+    private final float discountFactor;
+
+    
+    private final float learningRate;
+
+    
+    private final float explorationQuotient;
+
+    
+    private final Symmetry symmetry;
+
+    
+    private final Random random;
+
+    
+    private long lastAfterstate;
+
+    
+    private boolean moved;
+
+    
+    private float lastValue;
+
+    
+    private int numPoints;
+
+    
+    private int numUpdates;
+
+    
+    private double sumAbsTdError;
+
+    
+    Logger logger = Logger.getLogger(getClass().getPackage().getName());
+
+    
+    public AfterstateAgent(boolean training, StateMatrix values, boolean wide,
+            float discountFactor, float learningRate, float explorationQuotient,
+            Symmetry symmetry)
+    {
+        if (values.getNumActions() != 1)
+            throw new IllegalArgumentException(String.format(
+                        "Afterstate values need a matrix with one action, " +
+                        "got %d.", values.getNumActions()));
+
+        this.values = values;
+        this.training = training;
+        this.wide = wide;
+        this.discountFactor = discountFactor;
+        this.learningRate = learningRate;
+        this.explorationQuotient = explorationQuotient;
+        this.symmetry = symmetry;
+        this.random = new Random();
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        int action = -1;
+        float max = -Float.MAX_VALUE;
+
+        // Moves are compared by the board they lead to, so two moves that
+        // reach the same board, in any order, share one value.
+        for (int i = actions.next(0); i >= 0; i = actions.next(i + 1)) {
+            long afterstate = afterstate(state, i);
+            float value = values.getQ(afterstate, 0);
+
+            if (value > max) {
+                max = value;
+                action = i;
+                lastAfterstate = afterstate;
+            }
+        }
+
+        moved = action >= 0;
+
+        lastValue = max;
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest(String.format("Using action %d with value %f",
+                        action, max));
+        return action;
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        numPoints += feedback;
+
+        if (!training || !moved)
+            return;
+
+        float max = 0;
+
+        if (actions != null) {
+            max = -Float.MAX_VALUE;
+            for (int i = actions.next(0); i >= 0; i = actions.next(i + 1))
+                max = Math.max(max, values.getQ(afterstate(newState, i), 0));
+        }
+
+        float target = feedback + discountFactor * max;
+
+        ++numUpdates;
+        sumAbsTdError += Math.abs(target - lastValue);
+        lastValue = values.updateQ(lastAfterstate, 0, target, learningRate);
+
+        if (actions == null) {
+            moved = false;
+            Metrics.qUpdated(numUpdates, sumAbsTdError);
+            numUpdates = 0;
+            sumAbsTdError = 0;
+        }
+    }
+
+    
+    private long afterstate(long state, int action)
+    {
+        if (wide)
+            return state ^ StateKey.zobrist(action);
+
+        long afterstate = Grid.getIdentifier(state, action);
+        return symmetry == null ? afterstate : symmetry.getCanonical(afterstate);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        System.out.println(String.format(" | Afterstate score: %d ",
+                    numPoints));
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        // No need to observe.
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return training && explorationQuotient > random.nextFloat();
+    }
+}
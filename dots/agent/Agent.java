@@ -6,10 +6,10 @@ import java.util.*;
 public interface Agent
 {
     
-    public int getAction(long state, Set<Integer> actions);
+    public int getAction(long state, ActionSet actions);
 
     
-    public void giveFeedback(int feedback, long newState, Set<Integer> actions);
+    public void giveFeedback(int feedback, long newState, ActionSet actions);
     
     
     public void shutdown();
@@ -0,0 +1,307 @@
+package dots.agent;
+
+import dots.engine.Grid;
+import java.util.Observable;
+import java.util.Observer;
+
+
+public class AlphaBetaAgent implements Agent
+{
+    
+    public static final long DEFAULT_MOVE_MILLIS = 100;
+
+    
+    // Nodes searched between two looks at the clock.
+    private static final int CLOCK_INTERVAL = 1024;
+
+    
+    // Search grid, lines are drawn and taken back on it and never copied.
+    private final Grid grid;
+
+    
+    private final TranspositionTable table;
+
+    
+    private final long moveNanos;
+
+    
+    // Moves of every ply, sorted for the search.
+    private final int[][] moves;
+
+    
+    // The game's grid, only needed on wide boards whose identifier is a
+    // hash the lines can not be recovered from.
+    private Grid game;
+
+    
+    private long deadline;
+
+    
+    private boolean aborted;
+
+    
+    private long numNodes;
+
+    
+    private long numMoves;
+
+    
+    private long sumDepth;
+
+    
+    private int numPoints;
+
+    
+    public AlphaBetaAgent(int width, int height, long moveMillis,
+            TranspositionTable table)
+    {
+        if (moveMillis <= 0)
+            throw new IllegalArgumentException(String.format(
+                        "The time per move must be positive, got %d.",
+                        moveMillis));
+
+        this.grid = new Grid(width, height);
+        this.table = table;
+        this.moveNanos = moveMillis * 1000000;
+        this.moves = new int[grid.getSize() + 1][grid.getSize()];
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        if (grid.isWide())
+            grid.setState(game.getKey());
+        else
+            grid.setState(state);
+
+        deadline = System.nanoTime() + moveNanos;
+        aborted = false;
+
+        int numFree = grid.getAvailableLines().size();
+        int best = -1;
+        int depth;
+
+        // Each finished iteration leaves its principal moves in the table,
+        // which orders the next, deeper one. Once the depth covers every free
+        // line no leaf is cut off and the result is exact.
+        for (depth = 1; depth <= numFree; ++depth) {
+            int move = searchRoot(depth);
+            if (aborted)
+                break;
+            best = move;
+        }
+
+        ++numMoves;
+        sumDepth += depth - 1;
+
+        // Not even the first iteration finished, take the first move of the
+        // ordering.
+        if (best < 0 || !actions.contains(best)) {
+            order(0, -1);
+            best = moves[0][0];
+        }
+
+        return actions.contains(best) ? best : actions.next(0);
+    }
+
+    
+    private int searchRoot(int depth)
+    {
+        long key = grid.getIdentifier();
+        int count = order(0, TranspositionTable.getMove(table.probe(key)));
+        int alpha = -Short.MAX_VALUE;
+        int best = -1;
+
+        for (int i = 0; i < count; ++i) {
+            int move = moves[0][i];
+            int value = play(move, depth, alpha, Short.MAX_VALUE, 0);
+
+            if (aborted)
+                return -1;
+
+            if (value > alpha) {
+                alpha = value;
+                best = move;
+            }
+        }
+
+        table.store(key, alpha, depth, TranspositionTable.EXACT, best);
+        return best;
+    }
+
+    
+    // The value of drawing move for the player to move. Completing a box
+    // keeps the turn and does not use up depth, so a chain is always taken
+    // or declined within the same iteration.
+    private int play(int move, int depth, int alpha, int beta, int ply)
+    {
+        int completed = grid.setLine(move);
+        int value;
+
+        if (completed > 0)
+            value = completed + search(depth, alpha - completed,
+                    beta - completed, ply + 1);
+        else
+            value = -search(depth - 1, -beta, -alpha, ply + 1);
+
+        grid.unsetLine(move);
+        return value;
+    }
+
+    
+    // Negamax over the best box margin of the player to move.
+    private int search(int depth, int alpha, int beta, int ply)
+    {
+        if (grid.isFinished())
+            return 0;
+
+        if (++numNodes % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline)
+            aborted = true;
+        if (aborted)
+            return 0;
+
+        long key = grid.getIdentifier();
+        long data = table.probe(key);
+        int flag = TranspositionTable.getFlag(data);
+
+        if (flag != 0 && TranspositionTable.getDepth(data) >= depth) {
+            int stored = TranspositionTable.getValue(data);
+
+            if (flag == TranspositionTable.EXACT)
+                return stored;
+            if (flag == TranspositionTable.LOWER)
+                alpha = Math.max(alpha, stored);
+            else
+                beta = Math.min(beta, stored);
+            if (alpha >= beta)
+                return stored;
+        }
+
+        int count = order(ply, TranspositionTable.getMove(data));
+        int originalAlpha = alpha;
+        int best = -Short.MAX_VALUE;
+        int bestMove = -1;
+
+        // Past the horizon only boxes on offer are still taken, the margin
+        // is otherwise scored as even.
+        if (depth <= 0) {
+            best = 0;
+            if (best >= beta)
+                return best;
+            alpha = Math.max(alpha, best);
+        }
+
+        for (int i = 0; i < count; ++i) {
+            int move = moves[ply][i];
+
+            if (depth <= 0 && grid.getMaxBoxSides(move) < 3)
+                continue;
+
+            int value = play(move, depth, alpha, beta, ply);
+
+            if (aborted)
+                return 0;
+
+            if (value > best) {
+                best = value;
+                bestMove = move;
+            }
+            if (value > alpha)
+                alpha = value;
+            if (alpha >= beta)
+                break;
+        }
+
+        if (depth > 0) {
+            table.store(key, best, depth, best <= originalAlpha
+                    ? TranspositionTable.UPPER : best >= beta
+                    ? TranspositionTable.LOWER : TranspositionTable.EXACT,
+                    bestMove);
+        }
+
+        return best;
+    }
+
+    
+    // Fills moves[ply] with the free lines and returns their number. The
+    // stored best move comes first, then moves that complete a box, then
+    // those that leave no box with three sides, and last the sacrifices
+    // that hand boxes to the opponent.
+    private int order(int ply, int first)
+    {
+        ActionSet available = grid.getAvailableLines();
+        int[] list = moves[ply];
+        int count = 0;
+        int sacrifices = list.length;
+
+        if (available.contains(first))
+            list[count++] = first;
+
+        int captures = count;
+
+        for (int line = available.next(0); line >= 0;
+                line = available.next(line + 1)) {
+            if (line == first)
+                continue;
+
+            int sides = grid.getMaxBoxSides(line);
+
+            if (sides == 3) {
+                // Moved in front of the safe moves already listed.
+                list[count++] = list[captures];
+                list[captures++] = line;
+            } else if (sides == 2) {
+                list[--sacrifices] = line;
+            } else {
+                list[count++] = line;
+            }
+        }
+
+        // Sacrifices were filled in from the end, close the gap.
+        for (int i = sacrifices; i < list.length; ++i)
+            list[count++] = list[i];
+
+        return count;
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        numPoints += feedback;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        System.out.println(String.format(" | Alpha-beta score: %d, " +
+                    "%.1f plies deep, %d nodes ", numPoints,
+                    numMoves > 0 ? (double) sumDepth / numMoves : 0,
+                    numNodes));
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        if (!grid.isWide())
+            return;
+
+        obj.addObserver(new Observer() {
+            @Override
+            public void update(Observable observable, Object arg)
+            {
+                // The game announces its grid once when it is set up, the
+                // same instance is then played on every round.
+                if (arg instanceof Grid) {
+                    game = (Grid) arg;
+                    observable.deleteObserver(this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,129 @@
+package dots.agent;
+
+import dots.agent.q.StateMatrix;
+import java.util.Arrays;
+
+
+public class EligibilityTraces
+{
+    
+    public enum Mode
+    {
+        // Off-policy Q(lambda), traces are cut after an exploratory move.
+        WATKINS,
+
+        // On-policy, the target uses the value of the next action taken.
+        SARSA
+    }
+
+    
+    // Traces that decayed below this no longer change the values noticeably
+    // and are dropped.
+    private static final float MIN_TRACE = 1e-3f;
+
+    
+    private final Mode mode;
+
+    
+    private final float lambda;
+
+    
+    private long[] states = new long[32];
+
+    
+    private int[] actions = new int[32];
+
+    
+    private float[] traces = new float[32];
+
+    
+    private int size;
+
+    
+    public EligibilityTraces(Mode mode, float lambda)
+    {
+        if (lambda < 0 || lambda > 1)
+            throw new IllegalArgumentException(String.format(
+                        "Lambda must be in range [0, 1], got %f.", lambda));
+
+        this.mode = mode;
+        this.lambda = lambda;
+    }
+
+    
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    
+    public int size()
+    {
+        return size;
+    }
+
+    
+    public void clear()
+    {
+        size = 0;
+    }
+
+    
+    // Marks (state, action) as just visited and moves every traced pair by
+    // its share of delta, then decays the traces in the same pass. Returns
+    // the new value of (state, action).
+    public float update(StateMatrix matrix, long state, int action,
+            float delta, float learningRate, float discountFactor)
+    {
+        int visited = indexOf(state, action);
+
+        // Replacing traces, a pair visited twice in one episode is reset to
+        // one rather than accumulated.
+        if (visited < 0) {
+            if (size == states.length) {
+                states = Arrays.copyOf(states, size * 2);
+                actions = Arrays.copyOf(actions, size * 2);
+                traces = Arrays.copyOf(traces, size * 2);
+            }
+            visited = size++;
+            states[visited] = state;
+            actions[visited] = action;
+        }
+        traces[visited] = 1;
+
+        float decay = discountFactor * lambda;
+        float value = 0;
+        int kept = 0;
+
+        for (int i = 0; i < size; ++i) {
+            float q = matrix.getQ(states[i], actions[i]);
+            float updated = matrix.updateQ(states[i], actions[i], q + delta,
+                    learningRate * traces[i]);
+
+            if (i == visited)
+                value = updated;
+
+            float trace = traces[i] * decay;
+            if (trace < MIN_TRACE)
+                continue;
+
+            states[kept] = states[i];
+            actions[kept] = actions[i];
+            traces[kept++] = trace;
+        }
+
+        size = kept;
+        return value;
+    }
+
+    
+    private int indexOf(long state, int action)
+    {
+        // Episodes are at most a few dozen moves, a scan beats hashing.
+        for (int i = 0; i < size; ++i)
+            if (states[i] == state && actions[i] == action)
+                return i;
+
+        return -1;
+    }
+}
@@ -0,0 +1,590 @@
+package dots.agent;
+
+import dots.engine.Grid;
+import dots.engine.StateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class MctsAgent implements Agent
+{
+    
+    public static final long DEFAULT_PLAYOUTS = 10000;
+
+    
+    public static final int DEFAULT_POOL_BITS = 20;
+
+    
+    public static final double DEFAULT_EXPLORATION = 0.7;
+
+    
+    // A node's stats word holds its visits in the high half and the score of
+    // the player who moved into it, 2 per won playout, in the low
+    // half. Visits are added on the way down and the score on the way up,
+    // so a playout still running counts as a loss to the other workers
+    // (virtual loss) and they spread over different paths.
+    private static final long VISIT = 1L << 32;
+
+    
+    // A leaf is played out from this often before it is expanded.
+    private static final int EXPAND_VISITS = 1;
+
+    
+    private static final int UNEXPANDED = 0;
+
+    
+    private static final int EXPANDING = 1;
+
+    
+    private static final int EXPANDED = 2;
+
+    
+    // The pool ran out while expanding, the node stays a leaf.
+    private static final int FULL = 3;
+
+    
+    // The player to move at the root is always 0, the agent itself.
+    private static final byte SELF = 0;
+
+    
+    private final int capacity;
+
+    
+    // The node pool, node i's children are numChildren[i] consecutive nodes
+    // from firstChild[i].
+    private final int[] moves;
+
+    
+    private final byte[] movers;
+
+    
+    private final int[] firstChild;
+
+    
+    private final int[] numChildren;
+
+    
+    private final AtomicLongArray stats;
+
+    
+    private final AtomicIntegerArray expansion;
+
+    
+    private final AtomicInteger size = new AtomicInteger();
+
+    
+    // The board at the root, only read while the workers run.
+    private final Grid rootGrid;
+
+    
+    // Follows the moves played since the last root to find the new one.
+    private final Grid scratch;
+
+    
+    private final Worker[] workers;
+
+    
+    private final List<Callable<Void>> tasks;
+
+    
+    private final ExecutorService executor;
+
+    
+    private final long playouts;
+
+    
+    private final long moveNanos;
+
+    
+    private final double exploration;
+
+    
+    private final AtomicLong remaining = new AtomicLong();
+
+    
+    private long deadline;
+
+    
+    private int root = -1;
+
+    
+    private StateKey rootKey;
+
+    
+    // Boxes ahead of the opponent at the root, playouts are won or lost on
+    // the whole round and not only on the boxes still to be taken.
+    private int lead;
+
+    
+    private int ownBoxes;
+
+    
+    // The game awards a tied round to the player who did not start it.
+    private long drawScore = -1;
+
+    
+    // The game's grid, only needed on wide boards whose identifier is a
+    // hash the lines can not be recovered from.
+    private Grid game;
+
+    
+    private long numMoves;
+
+    
+    private long numReused;
+
+    
+    private long searchNanos;
+
+    
+    private int numPoints;
+
+    
+    // Exactly one of playouts and moveMillis is positive and bounds each
+    // move, by number of playouts or by wall clock.
+    public MctsAgent(int width, int height, long playouts, long moveMillis,
+            int threads, int poolBits)
+    {
+        if ((playouts > 0) == (moveMillis > 0) || playouts < 0
+                || moveMillis < 0)
+            throw new IllegalArgumentException("Expected either a number " +
+                    "of playouts or a time per move.");
+        if (threads <= 0)
+            throw new IllegalArgumentException(String.format(
+                        "Expected a positive number of threads, got %d.",
+                        threads));
+        if (poolBits < 10 || poolBits > 28)
+            throw new IllegalArgumentException(String.format(
+                        "Pool size must be in range [2^10, 2^28] nodes, " +
+                        "got 2^%d.", poolBits));
+
+        this.playouts = playouts;
+        this.moveNanos = moveMillis * 1000000;
+        this.exploration = DEFAULT_EXPLORATION;
+
+        // Allocated once, every node the agent will ever use lives here.
+        capacity = 1 << poolBits;
+        moves = new int[capacity];
+        movers = new byte[capacity];
+        firstChild = new int[capacity];
+        numChildren = new int[capacity];
+        stats = new AtomicLongArray(capacity);
+        expansion = new AtomicIntegerArray(capacity);
+
+        rootGrid = new Grid(width, height);
+        scratch = new Grid(width, height);
+
+        workers = new Worker[threads];
+        tasks = new ArrayList<Callable<Void>>(threads);
+
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Worker(width, height, i);
+            tasks.add(workers[i]);
+        }
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int next;
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "mcts-" + next++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        long start = System.nanoTime();
+
+        if (rootGrid.isWide())
+            rootGrid.setState(game.getKey());
+        else
+            rootGrid.setState(state);
+
+        StateKey key = new StateKey(rootGrid.getKey());
+        int reused = root >= 0 && size.get() <= capacity / 2
+            ? find(key) : -1;
+
+        // The subtree of the board now on the table is kept with its
+        // statistics, everything else in the pool is dropped once there is
+        // no subtree to keep or the pool is half used.
+        if (reused >= 0 && expansion.get(reused) == EXPANDED) {
+            root = reused;
+            ++numReused;
+        } else {
+            size.set(0);
+            root = allocate(1);
+            init(root, -1, (byte) (1 - SELF));
+            expand(root, rootGrid, SELF);
+        }
+
+        rootKey = key;
+        lead = 2 * ownBoxes - rootGrid.getNumBoxes();
+
+        if (drawScore < 0) {
+            boolean first = rootGrid.getAvailableLines().size()
+                == rootGrid.getSize();
+            drawScore = first ? 0 : 2;
+        }
+
+        remaining.set(playouts > 0 ? playouts : Long.MAX_VALUE);
+        deadline = moveNanos > 0 ? start + moveNanos : Long.MAX_VALUE;
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        int action = -1;
+        long maxVisits = -1;
+        int first = firstChild[root];
+
+        for (int child = first; child < first + numChildren[root]; ++child) {
+            long visits = stats.get(child) >>> 32;
+
+            if (visits > maxVisits && actions.contains(moves[child])) {
+                maxVisits = visits;
+                action = moves[child];
+            }
+        }
+
+        if (action < 0)
+            action = actions.next(0);
+
+        ownBoxes += rootGrid.setLine(action);
+        ++numMoves;
+        searchNanos += System.nanoTime() - start;
+
+        return action;
+    }
+
+    
+    // The node of the tree below the root that the lines drawn since the
+    // last move lead to, with the agent to move, or -1.
+    private int find(StateKey key)
+    {
+        int[] drawn = new int[rootGrid.getSize()];
+        int count = 0;
+
+        for (int i = 0; i < key.getNumWords(); ++i) {
+            long before = rootKey.getWord(i);
+            long after = key.getWord(i);
+
+            // Lines only get drawn within a round.
+            if ((before & ~after) != 0)
+                return -1;
+
+            for (long word = after & ~before; word != 0; word &= word - 1)
+                drawn[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        scratch.setState(rootKey);
+        return find(root, drawn, count, SELF);
+    }
+
+    
+    private int find(int node, int[] drawn, int count, byte toMove)
+    {
+        if (count == 0)
+            return toMove == SELF ? node : -1;
+        if (expansion.get(node) != EXPANDED)
+            return -1;
+
+        int first = firstChild[node];
+
+        for (int child = first; child < first + numChildren[node]; ++child) {
+            int line = moves[child];
+            int index = indexOf(drawn, count, line);
+
+            if (index < 0)
+                continue;
+
+            // The lines may have been drawn in any order, each one found is
+            // swapped out of the part still to be matched.
+            drawn[index] = drawn[count - 1];
+            drawn[count - 1] = line;
+
+            int completed = scratch.setLine(line);
+            int found = find(child, drawn, count - 1,
+                    completed > 0 ? toMove : (byte) (1 - toMove));
+            scratch.unsetLine(line);
+
+            drawn[count - 1] = drawn[index];
+            drawn[index] = line;
+
+            if (found >= 0)
+                return found;
+        }
+
+        return -1;
+    }
+
+    
+    private static int indexOf(int[] array, int count, int value)
+    {
+        for (int i = 0; i < count; ++i) {
+            if (array[i] == value)
+                return i;
+        }
+
+        return -1;
+    }
+
+    
+    // Returns the first of n new nodes, or -1 once the pool is used up.
+    private int allocate(int n)
+    {
+        int first = size.getAndAdd(n);
+        return first + n <= capacity && first >= 0 ? first : -1;
+    }
+
+    
+    private void init(int node, int move, byte mover)
+    {
+        moves[node] = move;
+        movers[node] = mover;
+        firstChild[node] = 0;
+        numChildren[node] = 0;
+        stats.set(node, 0);
+        expansion.set(node, UNEXPANDED);
+    }
+
+    
+    // Adds a child for every free line of grid, the board at node. Only one
+    // worker expands a node, the others play out from it as a leaf until the
+    // children are published.
+    private void expand(int node, Grid grid, byte toMove)
+    {
+        if (!expansion.compareAndSet(node, UNEXPANDED, EXPANDING))
+            return;
+
+        ActionSet available = grid.getAvailableLines();
+        int count = available.size();
+        int first = allocate(count);
+
+        if (first < 0) {
+            expansion.set(node, FULL);
+            return;
+        }
+
+        int child = first;
+        for (int line = available.next(0); line >= 0;
+                line = available.next(line + 1))
+            init(child++, line, toMove);
+
+        firstChild[node] = first;
+        numChildren[node] = count;
+
+        // The volatile write publishes the children to every worker that
+        // reads EXPANDED.
+        expansion.set(node, EXPANDED);
+    }
+
+    
+    // UCT, an unvisited child is always tried first.
+    private int select(int node)
+    {
+        int first = firstChild[node];
+        double logVisits = Math.log(Math.max(1, stats.get(node) >>> 32));
+        double max = -Double.MAX_VALUE;
+        int best = first;
+
+        for (int child = first; child < first + numChildren[node]; ++child) {
+            long stat = stats.get(child);
+            long visits = stat >>> 32;
+
+            if (visits == 0)
+                return child;
+
+            double value = (int) stat / (2.0 * visits)
+                + exploration * Math.sqrt(logVisits / visits);
+
+            if (value > max) {
+                max = value;
+                best = child;
+            }
+        }
+
+        return best;
+    }
+
+    
+    private class Worker implements Callable<Void>
+    {
+        private final Grid grid;
+
+        private final int[] path;
+
+        private final int[] safe;
+
+        private final Random random;
+
+        private long numPlayouts;
+
+        Worker(int width, int height, int index)
+        {
+            grid = new Grid(width, height);
+            path = new int[grid.getSize() + 1];
+            safe = new int[grid.getSize()];
+            random = new Random(System.nanoTime() + index);
+        }
+
+        @Override
+        public Void call()
+        {
+            while (remaining.getAndDecrement() > 0
+                    && System.nanoTime() < deadline) {
+                playout();
+                ++numPlayouts;
+            }
+
+            return null;
+        }
+
+        private void playout()
+        {
+            grid.copyFrom(rootGrid);
+
+            int node = root;
+            int depth = 0;
+            int margin = lead;
+            byte toMove = SELF;
+
+            path[depth++] = node;
+            stats.addAndGet(node, VISIT);
+
+            while (!grid.isFinished()) {
+                int state = expansion.get(node);
+
+                if (state != EXPANDED) {
+                    if (state != UNEXPANDED
+                            || stats.get(node) >>> 32 <= EXPAND_VISITS)
+                        break;
+
+                    expand(node, grid, toMove);
+                    if (expansion.get(node) != EXPANDED)
+                        break;
+                }
+
+                node = select(node);
+                path[depth++] = node;
+                stats.addAndGet(node, VISIT);
+
+                int completed = grid.setLine(moves[node]);
+                margin += toMove == SELF ? completed : -completed;
+                if (completed == 0)
+                    toMove = (byte) (1 - toMove);
+            }
+
+            while (!grid.isFinished()) {
+                int completed = grid.setLine(rolloutMove());
+                margin += toMove == SELF ? completed : -completed;
+                if (completed == 0)
+                    toMove = (byte) (1 - toMove);
+            }
+
+            long score = margin > 0 ? 2 : margin == 0 ? drawScore : 0;
+
+            for (int i = 1; i < depth; ++i) {
+                stats.addAndGet(path[i],
+                        movers[path[i]] == SELF ? score : 2 - score);
+            }
+        }
+
+        // Takes a box when one is on offer, otherwise avoids handing one
+        // over while it can. Uniformly random playouts give boxes away far
+        // more often than any player would.
+        private int rolloutMove()
+        {
+            ActionSet available = grid.getAvailableLines();
+            int numSafe = 0;
+
+            for (int line = available.next(0); line >= 0;
+                    line = available.next(line + 1)) {
+                int sides = grid.getMaxBoxSides(line);
+
+                if (sides == 3)
+                    return line;
+                if (sides < 2)
+                    safe[numSafe++] = line;
+            }
+
+            if (numSafe > 0)
+                return safe[random.nextInt(numSafe)];
+
+            return available.get(random.nextInt(available.size()));
+        }
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        numPoints += feedback;
+
+        // The round is over, the next one starts from an empty board.
+        if (actions == null) {
+            ownBoxes = 0;
+            drawScore = -1;
+            root = -1;
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        executor.shutdown();
+
+        long numPlayouts = 0;
+        for (Worker worker : workers)
+            numPlayouts += worker.numPlayouts;
+
+        System.out.println(String.format(" | MCTS score: %d, %.0f " +
+                    "playouts/s, %.1f ms per move, tree reused on %d of %d " +
+                    "moves ", numPoints,
+                    searchNanos > 0 ? numPlayouts / (searchNanos / 1e9) : 0,
+                    numMoves > 0 ? searchNanos / 1e6 / numMoves : 0,
+                    numReused, numMoves));
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        if (!rootGrid.isWide())
+            return;
+
+        obj.addObserver(new Observer() {
+            @Override
+            public void update(Observable observable, Object arg)
+            {
+                // The game announces its grid once when it is set up, the
+                // same instance is then played on every round.
+                if (arg instanceof Grid) {
+                    game = (Grid) arg;
+                    observable.deleteObserver(this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,290 @@
+package dots.agent;
+
+import dots.agent.q.StateMatrix;
+import dots.engine.Symmetry;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Observable;
+import java.util.Random;
+
+
+public class PolicyAgent implements Agent
+{
+    
+    public enum Fallback
+    {
+        // The lowest legal line, what QLearningAgent picks on an untouched
+        // row.
+        FIRST,
+
+        RANDOM
+    }
+
+    
+    static final int MAGIC = 0x444e4250;
+
+    
+    static final int VERSION = 1;
+
+    
+    static final int HEADER_SIZE = 64;
+
+    
+    static final int FLAG_SYMMETRY = 1;
+
+    
+    // Marks states the table held no preference for.
+    static final int NO_ACTION = 0xff;
+
+    
+    private final MappedByteBuffer policy;
+
+    
+    private final int width;
+
+    
+    private final int height;
+
+    
+    private final Fallback fallback;
+
+    
+    private final Symmetry symmetry;
+
+    
+    private final Random random;
+
+    
+    private int numPoints;
+
+    
+    private long numFallbacks;
+
+    
+    public PolicyAgent(String filename) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+            // Layout, all little endian:
+            //   0 magic, 4 version, 8 number of states (long),
+            //  16 number of actions, 20 width, 24 height, 28 flags,
+            //  32 fallback, 36 reserved up to HEADER_SIZE, then one byte
+            //  per state.
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    throw new IOException("Truncated policy header.");
+            }
+
+            header.rewind();
+
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a policy file.");
+            if (header.getInt() != VERSION)
+                throw new IOException("Unsupported policy file version.");
+
+            long numStates = header.getLong();
+            header.getInt();
+            width = header.getInt();
+            height = header.getInt();
+            int flags = header.getInt();
+            int mode = header.getInt();
+
+            if (mode < 0 || mode >= Fallback.values().length)
+                throw new IOException("Unknown fallback " + mode + ".");
+            if (channel.size() < HEADER_SIZE + numStates)
+                throw new IOException("Truncated policy file.");
+
+            fallback = Fallback.values()[mode];
+            symmetry = (flags & FLAG_SYMMETRY) != 0
+                ? new Symmetry(width, height) : null;
+
+            // Read only and shared through the page cache, so any number of
+            // agents and processes play from the same copy.
+            policy = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    numStates);
+        } finally {
+            file.close();
+        }
+
+        random = new Random();
+    }
+
+    
+    public int getWidth()
+    {
+        return width;
+    }
+
+    
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        int transform = 0;
+
+        if (symmetry != null) {
+            transform = symmetry.getCanonicalTransform(state);
+            state = symmetry.transform(transform, state);
+        }
+
+        int action = policy.get((int) state) & 0xff;
+
+        if (action != NO_ACTION) {
+            if (symmetry != null)
+                action = symmetry.inverseAction(transform, action);
+            if (actions.contains(action))
+                return action;
+        }
+
+        ++numFallbacks;
+
+        if (fallback == Fallback.RANDOM)
+            return actions.get(random.nextInt(actions.size()));
+
+        return actions.next(0);
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        // The policy is fixed, only the score is kept.
+        numPoints += feedback;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        System.out.println(String.format(" | Policy score: %d, %d fallbacks ",
+                    numPoints, numFallbacks));
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        // No need to observe.
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return false;
+    }
+
+    
+    public static long compile(StateMatrix matrix, int width, int height,
+            Symmetry symmetry, Fallback fallback, String filename)
+        throws IOException
+    {
+        long numStates = matrix.getNumStates();
+        int numActions = matrix.getNumActions();
+
+        // Identifiers must be the line bitmasks themselves, both to index the
+        // table and to know which lines are still free in a state.
+        if (numStates > Integer.MAX_VALUE || numActions >= NO_ACTION)
+            throw new IllegalArgumentException(String.format(
+                        "A board with %d lines is too large for a compiled " +
+                        "policy.", numActions));
+
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        float[] row = new float[numActions];
+        long full = numActions == 64 ? -1L : (1L << numActions) - 1;
+        long numPolicyStates = 0;
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(numStates);
+            header.putInt(numActions);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(symmetry != null ? FLAG_SYMMETRY : 0);
+            header.putInt(fallback.ordinal());
+            header.rewind();
+
+            channel.truncate(0);
+            while (header.hasRemaining())
+                channel.write(header);
+
+            for (long state = 0; state < numStates; ++state) {
+                int action = NO_ACTION;
+
+                // Only canonical states are ever looked up with symmetry,
+                // the others are left empty.
+                if (symmetry == null || symmetry.getCanonical(state) == state) {
+                    matrix.getRow(state, row);
+                    action = bestAction(row, ~state & full);
+                }
+
+                if (action != NO_ACTION)
+                    ++numPolicyStates;
+
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+
+                buffer.put((byte) action);
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        return numPolicyStates;
+    }
+
+    
+    // The first free line with the highest value, or NO_ACTION if all free
+    // lines hold the same value and the table has nothing to say.
+    private static int bestAction(float[] row, long free)
+    {
+        int best = NO_ACTION;
+        boolean differs = false;
+
+        for (long lines = free; lines != 0; lines &= lines - 1) {
+            int action = Long.numberOfTrailingZeros(lines);
+
+            if (best == NO_ACTION) {
+                best = action;
+            } else if (row[action] != row[best]) {
+                differs = true;
+                if (row[action] > row[best])
+                    best = action;
+            }
+        }
+
+        return differs ? best : NO_ACTION;
+    }
+}
@@ -1,5 +1,7 @@
 package dots.agent;
 import dots.agent.q.StateMatrix;
+import dots.engine.Symmetry;
+import dots.util.Metrics;
 import java.util.*;
 import java.util.logging.*;
 
@@ -18,6 +20,12 @@ public class QLearningAgent implements Agent
     
     private int lastAction;
     
+    private float lastValue;
+    
+    private int numUpdates;
+    
+    private double sumAbsTdError;
+    
     private int numPoints;
     
     private final float discountFactor;
@@ -28,6 +36,26 @@ public class QLearningAgent implements Agent
     
     boolean training;
     
+    private final Symmetry symmetry;
+    
+    private final Random random;
+    
+    private final float[] row;
+    
+    private ReplayBuffer replay;
+    
+    private int replayBatchSize;
+    
+    private long[] nextMask;
+    
+    private EligibilityTraces traces;
+    
+    // With SARSA traces the update for a move waits for the next action,
+    // this holds its reward until then.
+    private float pendingReward;
+    
+    private boolean pending;
+    
     Logger logger = Logger.getLogger(getClass().getPackage().getName());
     
     public QLearningAgent(boolean training, StateMatrix matrix)
@@ -37,74 +65,264 @@ public class QLearningAgent implements Agent
     
     public QLearningAgent(boolean training, StateMatrix matrix,
             float discountFactor, float learningRate, float explorationQuotient)
+    {
+        this(training, matrix, discountFactor, learningRate,
+                explorationQuotient, null);
+    }
+    
+    public QLearningAgent(boolean training, StateMatrix matrix,
+            float discountFactor, float learningRate, float explorationQuotient,
+            Symmetry symmetry)
     {
         this.stateMatrix = matrix;
+        this.symmetry = symmetry;
         this.discountFactor = discountFactor;
         this.learningRate = learningRate;
         this.training = training;
         this.numPoints = 0;
         this.explorationQuotient = explorationQuotient;
+        this.random = new Random();
+        this.row = new float[matrix.getNumActions()];
+    }
+    
+    // Every transition is also kept in replay, and batchSize of them are
+    // replayed into the matrix at the end of each episode.
+    public void setReplay(ReplayBuffer replay, int batchSize)
+    {
+        this.replay = replay;
+        this.replayBatchSize = batchSize;
+        this.nextMask = new long[replay.getNumWords()];
+    }
+    
+    public void setTraces(EligibilityTraces traces)
+    {
+        this.traces = traces;
     }
     
     @Override
-    public int getAction(long state, Set<Integer> actions)
+    public int getAction(long state, ActionSet actions)
     {
-        lastState = state;
+        int transform = 0;
+        int action = -1;
         float max = -Float.MAX_VALUE;
+
+        // With symmetry enabled every state is looked up through its
+        // canonical representative, actions are mapped along with it.
+        if (symmetry != null) {
+            transform = symmetry.getCanonicalTransform(state);
+            state = symmetry.transform(transform, state);
+        }
+
+        long previousState = lastState;
+        int previousAction = lastAction;
+
+        lastState = state;
         lastAction = -1;
 
-        for (Integer i : actions) {
-            if (training && stateMatrix.getQ(state, i) == 0) {
-                logger.finest(String.format("Exploring action %d for state %d.",
-                            i, state));
-                max = stateMatrix.getQ(state, i);
-                lastAction = i;
+        // Without exploration or symmetry the choice is a plain argmax over
+        // the legal actions, which the matrix does in one call.
+        if (!training && symmetry == null) {
+            lastAction = stateMatrix.getBestAction(state, actions.getWords());
+            return lastAction;
+        }
+
+        // One row fetch instead of a lookup per action.
+        stateMatrix.getRow(state, row);
+
+        for (int i = actions.next(0); i >= 0; i = actions.next(i + 1)) {
+            int key = symmetry == null ? i : symmetry.transformAction(transform, i);
+            float q = row[key];
+
+            if (training && q == 0) {
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest(String.format(
+                                "Exploring action %d for state %d.", i, state));
+                max = q;
+                action = i;
+                lastAction = key;
+
+                // Credit for what follows an exploratory move does not
+                // belong to the greedy policy's earlier moves. Untouched
+                // actions tied with the best one are still greedy.
+                if (traces != null
+                        && traces.getMode() == EligibilityTraces.Mode.WATKINS
+                        && !isGreedy(row, actions, transform, q))
+                    traces.clear();
                 break;
             }
-            if (stateMatrix.getQ(state, i) > max) {
-                max = stateMatrix.getQ(state, i);
-                lastAction = i;
+            if (q > max) {
+                max = q;
+                action = i;
+                lastAction = key;
             }
         }
-        logger.finest(String.format("Using action %d with Q-value %f",
-                    lastAction, stateMatrix.getQ(state, lastAction)));
-        return lastAction;
+        lastValue = max;
+
+        if (pending) {
+            pending = false;
+            if (lastAction >= 0)
+                learn(previousState, previousAction,
+                        pendingReward + discountFactor * max);
+            lastValue = max;
+        }
+
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest(String.format("Using action %d with Q-value %f",
+                        action, max));
+        return action;
     }
     
     @Override
-    public void giveFeedback(int feedback, long newState, Set<Integer> actions)
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
     {
         numPoints += feedback;
-        logger.entering(QLearningAgent.class.getName(), "giveFeedback",
-            new Object[] {feedback, newState});
+        if (logger.isLoggable(Level.FINER))
+            logger.entering(QLearningAgent.class.getName(), "giveFeedback",
+                new Object[] {feedback, newState});
         
         if (training) {
-            float lastQ = stateMatrix.getQ(lastState, lastAction);
             float max = 0;
+            long[] mask = null;
             if (actions != null) {
-                int maxAction = -1;
+                int transform = 0;
                 max = -Float.MAX_VALUE;
-                for (Integer i : actions) {
-                    if (stateMatrix.getQ(newState, i) > max) {
-                        maxAction = i;
-                        max = stateMatrix.getQ(newState, i);
-                    }
+
+                if (symmetry != null) {
+                    transform = symmetry.getCanonicalTransform(newState);
+                    newState = symmetry.transform(transform, newState);
                 }
+
+                stateMatrix.getRow(newState, row);
+
+                // Replayed transitions need the legal actions in the same
+                // frame as the matrix rows.
+                if (replay != null) {
+                    mask = symmetry == null ? actions.getWords() : nextMask;
+                    Arrays.fill(nextMask, 0);
+                }
+
+                for (int i = actions.next(0); i >= 0; i = actions.next(i + 1)) {
+                    int key = symmetry == null ? i
+                        : symmetry.transformAction(transform, i);
+                    float q = row[key];
+                    if (q > max)
+                        max = q;
+                    if (mask != null && symmetry != null)
+                        nextMask[key >>> 6] |= 1L << key;
+                }
+            }
+            float target = feedback + discountFactor * max;
+            float newQValue = lastValue;
+
+            // SARSA needs the value of the action taken next, not the best
+            // one, so the update is finished by the next getAction.
+            if (traces != null && actions != null
+                    && traces.getMode() == EligibilityTraces.Mode.SARSA) {
+                pendingReward = feedback;
+                pending = true;
+            } else {
+                newQValue = learn(lastState, lastAction, target);
+            }
+
+            if (replay != null && lastAction >= 0)
+                replay.add(lastState, lastAction, feedback, newState, mask, 0);
+
+            if (actions == null) {
+                if (traces != null)
+                    traces.clear();
+                pending = false;
+                if (replay != null)
+                    replay();
+                Metrics.qUpdated(numUpdates, sumAbsTdError);
+                numUpdates = 0;
+                sumAbsTdError = 0;
             }
-            float newQValue =
-                lastQ
-                + learningRate
-                    * (feedback + discountFactor
-                        * max - lastQ);
-            logger.finest(String.format("Saving Q-value (%d, %d, %f) %f", lastState,
-                        lastAction, newQValue, max));
-            										        												            
-            stateMatrix.setQ(lastState, lastAction, newQValue);
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest(String.format("Saving Q-value (%d, %d, %f) %f",
+                            lastState, lastAction, newQValue, max));
         } else {
             logger.finest("Training mode disabled, matrix not updated.");
         }
     }
     
+    private boolean isGreedy(float[] row, ActionSet actions, int transform,
+            float value)
+    {
+        for (int i = actions.next(0); i >= 0; i = actions.next(i + 1)) {
+            int key = symmetry == null ? i : symmetry.transformAction(transform, i);
+            if (row[key] > value)
+                return false;
+        }
+
+        return true;
+    }
+    
+    private float learn(long state, int action, float target)
+    {
+        float q = lastValue;
+        float value;
+
+        if (traces == null) {
+            value = stateMatrix.updateQ(state, action, target, learningRate);
+        } else {
+            // Only lastValue is known to match the state of this update
+            // without SARSA, read it back when the update was deferred.
+            if (traces.getMode() == EligibilityTraces.Mode.SARSA)
+                q = stateMatrix.getQ(state, action);
+            value = traces.update(stateMatrix, state, action, target - q,
+                    learningRate, discountFactor);
+        }
+
+        // Counted locally and handed over once per episode, which keeps
+        // the shared counters off the per move path.
+        ++numUpdates;
+        sumAbsTdError += Math.abs(target - q);
+        lastValue = value;
+
+        return value;
+    }
+    
+    private void replay()
+    {
+        int numWords = replay.getNumWords();
+        long[] masks = replay.getMasks();
+
+        for (int n = Math.min(replayBatchSize, replay.size()); n > 0; --n) {
+            int slot = replay.sample(random);
+            long state = replay.getState(slot);
+            int action = replay.getAction(slot);
+            int offset = replay.getMaskOffset(slot);
+            float max = 0;
+            boolean first = true;
+
+            stateMatrix.getRow(replay.getNextState(slot), row);
+
+            for (int i = 0; i < numWords; ++i) {
+                for (long word = masks[offset + i]; word != 0;
+                        word &= word - 1) {
+                    float q = row[(i << 6) + Long.numberOfTrailingZeros(word)];
+                    if (first || q > max)
+                        max = q;
+                    first = false;
+                }
+            }
+
+            float target = replay.getReward(slot) + discountFactor * max;
+            float tdError = target - stateMatrix.getQ(state, action);
+
+            // Prioritized draws are biased towards large errors, the weight
+            // scales their step back down.
+            stateMatrix.updateQ(state, action, target, learningRate
+                    * replay.getWeight(slot,
+                        ReplayBuffer.DEFAULT_IMPORTANCE_EXPONENT));
+            replay.updatePriority(slot, tdError,
+                    ReplayBuffer.DEFAULT_PRIORITY_EXPONENT);
+
+            ++numUpdates;
+            sumAbsTdError += Math.abs(tdError);
+        }
+    }
+    
     @Override
     public void shutdown()
     {
@@ -118,8 +336,7 @@ public class QLearningAgent implements Agent
     @Override
     public boolean toExplore()
     {
-        Random rand = new Random();        
-        float randNo = rand.nextFloat();
+        float randNo = random.nextFloat();
         if(explorationQuotient > randNo) {
            return true; 
         }
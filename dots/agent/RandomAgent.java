@@ -2,7 +2,6 @@ package dots.agent;
 
 import java.util.Observable;
 import java.util.Random;
-import java.util.Set;
 
 
 public class RandomAgent implements Agent
@@ -24,14 +23,14 @@ public class RandomAgent implements Agent
 
     
     @Override
-    public int getAction(long state, Set<Integer> actions)
+    public int getAction(long state, ActionSet actions)
     {
-        return (Integer) actions.toArray()[random.nextInt(actions.size())];
+        return actions.get(random.nextInt(actions.size()));
     }
 
     
     @Override
-    public void giveFeedback(int feedback, long newState, Set<Integer> actions)
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
     {
         // Do nothing, as the RandomAgent has no memory.
     }
@@ -0,0 +1,240 @@
+package dots.agent;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class ReplayBuffer
+{
+    
+    public enum Sampling
+    {
+        UNIFORM, PRIORITIZED
+    }
+
+    
+    public static final float DEFAULT_PRIORITY_EXPONENT = 0.6f;
+
+    
+    public static final float DEFAULT_IMPORTANCE_EXPONENT = 0.4f;
+
+    
+    // Keeps transitions with a zero TD error from never being drawn again.
+    private static final double MIN_PRIORITY = 1e-3;
+
+    
+    private final int capacity;
+
+    
+    private final int numWords;
+
+    
+    private final Sampling sampling;
+
+    
+    private final long[] states;
+
+    
+    private final int[] actions;
+
+    
+    private final float[] rewards;
+
+    
+    private final long[] nextStates;
+
+    
+    // Legal actions in the next state, numWords per transition and all zero
+    // for a terminal one.
+    private final long[] masks;
+
+    
+    // Sum and min trees over the priorities, leaf i at [leaves + i].
+    private final double[] tree;
+
+    
+    private final double[] minTree;
+
+    
+    private final int leaves;
+
+    
+    private double maxPriority = 1;
+
+    
+    private int next;
+
+    
+    private int size;
+
+    
+    public ReplayBuffer(int capacity, int numActions, Sampling sampling)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException(String.format(
+                        "Replay capacity must be positive, got %d.", capacity));
+
+        this.capacity = capacity;
+        this.numWords = (numActions + 63) >>> 6;
+        this.sampling = sampling;
+
+        // All storage is allocated up front, adding a transition writes into
+        // the slot of the oldest one.
+        states = new long[capacity];
+        actions = new int[capacity];
+        rewards = new float[capacity];
+        nextStates = new long[capacity];
+        masks = new long[capacity * numWords];
+
+        leaves = sampling == Sampling.PRIORITIZED
+            ? Integer.highestOneBit(Math.max(1, capacity - 1)) << 1 : 0;
+        tree = sampling == Sampling.PRIORITIZED ? new double[2 * leaves] : null;
+        minTree = sampling == Sampling.PRIORITIZED
+            ? new double[2 * leaves] : null;
+
+        if (minTree != null)
+            Arrays.fill(minTree, Double.MAX_VALUE);
+    }
+
+    
+    public int size()
+    {
+        return size;
+    }
+
+    
+    public int getNumWords()
+    {
+        return numWords;
+    }
+
+    
+    public Sampling getSampling()
+    {
+        return sampling;
+    }
+
+    
+    // mask holds numWords words starting at offset, null for a terminal
+    // transition. Returns the slot written.
+    public int add(long state, int action, float reward, long nextState,
+            long[] mask, int offset)
+    {
+        int slot = next;
+
+        states[slot] = state;
+        actions[slot] = action;
+        rewards[slot] = reward;
+        nextStates[slot] = nextState;
+
+        for (int i = 0; i < numWords; ++i)
+            masks[slot * numWords + i] = mask != null ? mask[offset + i] : 0;
+
+        // New transitions get the highest priority seen so far, so each is
+        // replayed at least once before its error is known.
+        if (tree != null)
+            setPriority(slot, maxPriority);
+
+        next = (next + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+
+        return slot;
+    }
+
+    
+    public int sample(Random random)
+    {
+        if (tree == null)
+            return random.nextInt(size);
+
+        double target = random.nextDouble() * tree[1];
+        int node = 1;
+
+        while (node < leaves) {
+            node <<= 1;
+            if (target >= tree[node]) {
+                target -= tree[node];
+                ++node;
+            }
+        }
+
+        // Rounding can walk past the last used leaf.
+        return Math.min(node - leaves, size - 1);
+    }
+
+    
+    // Importance sampling correction for a prioritized draw, normalized so
+    // the largest weight is 1. Always 1 for uniform sampling.
+    public float getWeight(int slot, float exponent)
+    {
+        if (tree == null)
+            return 1;
+
+        return (float) Math.pow(tree[leaves + slot] / minTree[1], -exponent);
+    }
+
+    
+    public void updatePriority(int slot, float tdError, float exponent)
+    {
+        if (tree == null)
+            return;
+
+        double priority = Math.pow(Math.abs(tdError) + MIN_PRIORITY,
+                exponent);
+        maxPriority = Math.max(maxPriority, priority);
+        setPriority(slot, priority);
+    }
+
+    
+    public long getState(int slot)
+    {
+        return states[slot];
+    }
+
+    
+    public int getAction(int slot)
+    {
+        return actions[slot];
+    }
+
+    
+    public float getReward(int slot)
+    {
+        return rewards[slot];
+    }
+
+    
+    public long getNextState(int slot)
+    {
+        return nextStates[slot];
+    }
+
+    
+    // The legal actions of the next state start at masks[getMaskOffset()].
+    public long[] getMasks()
+    {
+        return masks;
+    }
+
+    
+    public int getMaskOffset(int slot)
+    {
+        return slot * numWords;
+    }
+
+    
+    private void setPriority(int slot, double priority)
+    {
+        int node = leaves + slot;
+
+        tree[node] = priority;
+        minTree[node] = priority;
+
+        // Parents are recomputed rather than adjusted by the difference, so
+        // rounding errors do not pile up in the root.
+        for (node >>>= 1; node > 0; node >>>= 1) {
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+            minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package dots.agent;
+
+import java.util.*;
+
+
+public interface SetAgent
+{
+    
+    public int getAction(long state, Set<Integer> actions);
+
+    
+    public void giveFeedback(int feedback, long newState, Set<Integer> actions);
+    
+    
+    public void shutdown();
+
+    public boolean toExplore();
+
+    
+    public void observe(Observable obj);
+}
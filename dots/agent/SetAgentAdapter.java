@@ -0,0 +1,59 @@
+package dots.agent;
+
+import java.util.HashSet;
+import java.util.Observable;
+import java.util.Set;
+
+
+public class SetAgentAdapter implements Agent
+{
+    
+    private final SetAgent agent;
+
+    
+    private final Set<Integer> actions;
+
+    
+    public SetAgentAdapter(SetAgent agent)
+    {
+        this.agent = agent;
+        this.actions = new HashSet<Integer>();
+    }
+
+    
+    public SetAgent getAgent()
+    {
+        return agent;
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        return agent.getAction(state, actions.toSet(this.actions));
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        agent.giveFeedback(feedback, newState,
+                actions == null ? null : actions.toSet(this.actions));
+    }
+
+    @Override
+    public void shutdown()
+    {
+        agent.shutdown();
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return agent.toExplore();
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        agent.observe(obj);
+    }
+}
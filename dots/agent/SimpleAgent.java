@@ -1,22 +1,20 @@
 package dots.agent;
 
-import java.util.Collections;
 import java.util.Observable;
-import java.util.Set;
 
 
 public class SimpleAgent implements Agent
 {
     
     @Override
-    public int getAction(long state, Set<Integer> actions)
+    public int getAction(long state, ActionSet actions)
     {
-        return Collections.min(actions);
+        return actions.next(0);
     }
 
     
     @Override
-    public void giveFeedback(int feedback, long newState, Set<Integer> actions)
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
     {
     }
 
@@ -0,0 +1,136 @@
+package dots.agent;
+
+import dots.engine.Grid;
+import dots.engine.RetrogradeSolver;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Observable;
+
+
+public class SolverAgent implements Agent
+{
+    
+    private final MappedByteBuffer values;
+
+    
+    private final Grid grid;
+
+    
+    private int numPoints;
+
+    
+    public SolverAgent(String filename) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(
+                    RetrogradeSolver.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    throw new IOException("Truncated solution header.");
+            }
+
+            header.rewind();
+
+            if (header.getInt() != RetrogradeSolver.MAGIC)
+                throw new IOException("Not a solution file.");
+            if (header.getInt() != RetrogradeSolver.VERSION)
+                throw new IOException("Unsupported solution file version.");
+
+            long numStates = header.getLong();
+            int numLines = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+
+            grid = new Grid(width, height);
+
+            if (grid.getSize() != numLines || numStates != 1L << numLines)
+                throw new IOException("Corrupt solution header.");
+            if (channel.size() < RetrogradeSolver.HEADER_SIZE + numStates)
+                throw new IOException("Truncated solution file.");
+
+            values = channel.map(FileChannel.MapMode.READ_ONLY,
+                    RetrogradeSolver.HEADER_SIZE, numStates);
+        } finally {
+            file.close();
+        }
+    }
+
+    
+    public int getWidth()
+    {
+        return grid.getWidth();
+    }
+
+    
+    public int getHeight()
+    {
+        return grid.getHeight();
+    }
+
+    
+    // The best margin of boxes the player to move still wins by.
+    public int getValue(long state)
+    {
+        return values.get((int) state);
+    }
+
+    
+    // The margin after drawing line in state and playing perfectly on.
+    public int getValue(long state, int line)
+    {
+        int next = values.get((int) (state | (1L << line)));
+        int completed = grid.getNumCompleted(state, line);
+
+        return completed > 0 ? completed + next : -next;
+    }
+
+    @Override
+    public int getAction(long state, ActionSet actions)
+    {
+        int action = -1;
+        int max = Integer.MIN_VALUE;
+
+        for (int i = actions.next(0); i >= 0; i = actions.next(i + 1)) {
+            int value = getValue(state, i);
+
+            if (value > max) {
+                max = value;
+                action = i;
+            }
+        }
+
+        return action;
+    }
+
+    @Override
+    public void giveFeedback(int feedback, long newState, ActionSet actions)
+    {
+        numPoints += feedback;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        System.out.println(String.format(" | Solver score: %d ", numPoints));
+    }
+
+    @Override
+    public void observe(Observable obj)
+    {
+        // No need to observe.
+    }
+
+    @Override
+    public boolean toExplore()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+package dots.agent;
+
+import java.util.Arrays;
+
+
+public class TranspositionTable
+{
+    
+    public static final int EXACT = 1;
+
+    
+    // The value is at least the stored one, the search failed high.
+    public static final int LOWER = 2;
+
+    
+    // The value is at most the stored one, the search failed low.
+    public static final int UPPER = 3;
+
+    
+    public static final int DEFAULT_SIZE_BITS = 20;
+
+    
+    // Two words per entry, the key xor the data and the data. An entry torn
+    // by a concurrent store no longer matches its key and reads as a miss,
+    // so agents on other threads can share one table without locking.
+    private final long[] entries;
+
+    
+    private final int mask;
+
+    
+    public TranspositionTable(int sizeBits)
+    {
+        if (sizeBits < 1 || sizeBits > 28)
+            throw new IllegalArgumentException(String.format(
+                        "Table size must be in range [2^1, 2^28] entries, " +
+                        "got 2^%d.", sizeBits));
+
+        entries = new long[2 << sizeBits];
+        mask = (1 << sizeBits) - 1;
+    }
+
+    
+    // Returns the packed data stored for key, or 0 if there is none.
+    public long probe(long key)
+    {
+        int index = index(key);
+        long data = entries[index + 1];
+
+        return (entries[index] ^ data) == key ? data : 0;
+    }
+
+    
+    // Always replaces, the newest result is the one most likely to be
+    // looked up again by the next iteration.
+    public void store(long key, int value, int depth, int flag, int move)
+    {
+        long data = (value & 0xffffL) | ((long) Math.min(depth, 0xff)) << 16
+            | ((long) flag << 24) | ((long) (move + 1) & 0xffff) << 32;
+        int index = index(key);
+
+        entries[index] = key ^ data;
+        entries[index + 1] = data;
+    }
+
+    
+    public static int getValue(long data)
+    {
+        return (short) data;
+    }
+
+    
+    public static int getDepth(long data)
+    {
+        return (int) (data >>> 16) & 0xff;
+    }
+
+    
+    // EXACT, LOWER or UPPER, 0 for a miss.
+    public static int getFlag(long data)
+    {
+        return (int) (data >>> 24) & 0x3;
+    }
+
+    
+    // -1 if no move was stored.
+    public static int getMove(long data)
+    {
+        return (int) ((data >>> 32) & 0xffff) - 1;
+    }
+
+    
+    public void clear()
+    {
+        Arrays.fill(entries, 0);
+    }
+
+    
+    private int index(long key)
+    {
+        // Fibonacci hashing, identifiers of nearby narrow boards differ only
+        // in a few low bits.
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 33 & mask) << 1;
+    }
+}
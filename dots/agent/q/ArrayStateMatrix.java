@@ -2,46 +2,99 @@ package dots.agent.q;
 
 import dots.agent.q.StateMatrix;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 
-public class ArrayStateMatrix implements StateMatrix, Serializable
+public class ArrayStateMatrix implements StateMatrix
 {
     
     String filename;
 
     
+    // Rows are allocated on their first write, a null row holds the default
+    // value for every action.
     float matrix[][];
 
     
-    static final float DEFAULT_Q_VALUE = -1.0f;
+    private final int numActions;
 
     
-    private ArrayStateMatrix(String filename, float matrix[][])
+    private final float defaultValue;
+
+    
+    private final float[] defaultRow;
+
+    
+    private final AtomicLong numVisitedStates = new AtomicLong();
+
+    
+    public static final float DEFAULT_Q_VALUE = -1.0f;
+
+    
+    private static final VarHandle ROW =
+        MethodHandles.arrayElementVarHandle(float[].class);
+
+    
+    private static final VarHandle ROWS =
+        MethodHandles.arrayElementVarHandle(float[][].class);
+
+    
+    private ArrayStateMatrix(String filename, float matrix[][],
+            int numActions, float defaultValue)
     {
         this.filename = filename;
         this.matrix = matrix;
+        this.numActions = numActions;
+        this.defaultValue = defaultValue;
+        this.defaultRow = new float[numActions];
+
+        Arrays.fill(defaultRow, defaultValue);
     }
 
     @Override
     public float getQ(long state, int action)
     {
-        return matrix[(int)state][action];
+        return row(state)[action];
     }
 
     @Override
     public void setQ(long state, int action, float value)
     {
-        matrix[(int)state][action] = value;
+        writableRow(state)[action] = value;
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        System.arraycopy(row(state), 0, row, 0, row.length);
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        return ROW.compareAndSet(writableRow(state), action, expected, value);
     }
 
     @Override
     public float getMaxValue(long state)
     {
+        float[] row = row(state);
         float max = Float.MIN_VALUE;
 
-        for (int i = 0; i < matrix[(int)state].length; ++i)
-            if (matrix[(int)state][i] > max)
-                max = matrix[(int)state][i];
+        for (int i = 0; i < row.length; ++i)
+            if (row[i] > max)
+                max = row[i];
 
         return max;
     }
@@ -49,7 +102,7 @@ public class ArrayStateMatrix implements StateMatrix, Serializable
     @Override
     public int getNumActions()
     {
-        return matrix[0].length;
+        return numActions;
     }
 
     @Override
@@ -58,55 +111,201 @@ public class ArrayStateMatrix implements StateMatrix, Serializable
         return matrix.length;
     }
 
+    @Override
+    public long getNumVisitedStates()
+    {
+        return numVisitedStates.get();
+    }
+
     public void shutdown()
     {
         try {
-            ObjectOutputStream objStream = new ObjectOutputStream(
-                    new FileOutputStream(filename));
-            objStream.writeObject(this);
-            objStream.close();
-        } catch (Exception e) {
+            save();
+        } catch (IOException e) {
             // We can't recover here.
         }
     }
 
+    @Override
+    public void close() throws IOException
+    {
+        save();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        save();
+    }
+
     
-    public static StateMatrix create(String filename, long numStates,
-            int numActions) throws OutOfMemoryError
+    // Back to a freshly created matrix. The array of row references is kept
+    // and the rows are dropped, so one table can be reused across
+    // independent runs.
+    public void reset()
+    {
+        Arrays.fill(matrix, null);
+        numVisitedStates.set(0);
+    }
+
+    
+    // Read only, untouched states share defaultRow.
+    private float[] row(long state)
     {
-        float matrix[][] = new float[(int)numStates][numActions];
+        float[] row = (float[]) ROWS.getAcquire(matrix, (int)state);
+        return row != null ? row : defaultRow;
+    }
 
-        for (int i = 0; i < numStates; ++i) {
-            for (int j = 0; j < numActions; ++j) {
-                matrix[i][j] = DEFAULT_Q_VALUE;
+    
+    private float[] writableRow(long state)
+    {
+        float[] row = (float[]) ROWS.getAcquire(matrix, (int)state);
+
+        if (row != null)
+            return row;
+
+        // Racing writers agree on the first row installed, a losing thread
+        // drops its own copy.
+        row = defaultRow.clone();
+        float[] current = (float[]) ROWS.compareAndExchangeRelease(matrix,
+                (int)state, null, row);
+
+        if (current != null)
+            return current;
+
+        numVisitedStates.incrementAndGet();
+        return row;
+    }
+
+    
+    void save() throws IOException
+    {
+        // Written next to the old file and moved over it at the end, so a
+        // failed save never leaves a half written matrix behind.
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        int rowSize = getNumActions() * 4;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                Math.max(rowSize, StateMatrixFile.CHUNK_SIZE / rowSize * rowSize))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer floats = buffer.asFloatBuffer();
+        CRC32C crc = new CRC32C();
+        StateMatrixFile header = new StateMatrixFile(getNumStates(),
+                getNumActions(), defaultValue);
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+
+        try {
+            channel.truncate(0);
+            channel.position(StateMatrixFile.HEADER_SIZE);
+
+            for (int i = 0; i < matrix.length; ++i) {
+                if (!floats.hasRemaining())
+                    flush(channel, buffer, floats, crc);
+                floats.put(row(i));
             }
+            flush(channel, buffer, floats, crc);
+
+            header.setChecksum((int) crc.getValue());
+            header.write(channel);
+        } finally {
+            channel.close();
         }
 
-        return new ArrayStateMatrix(filename, matrix);
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    
+    private static void flush(FileChannel channel, ByteBuffer buffer,
+            FloatBuffer floats, CRC32C crc) throws IOException
+    {
+        buffer.limit(floats.position() * 4).position(0);
+        crc.update(buffer);
+        buffer.position(0);
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        buffer.clear();
+        floats.clear();
+    }
+
+    
+    public static ArrayStateMatrix create(String filename, long numStates,
+            int numActions) throws OutOfMemoryError
+    {
+        return create(filename, numStates, numActions, DEFAULT_Q_VALUE);
+    }
+
+    
+    public static ArrayStateMatrix create(String filename, long numStates,
+            int numActions, float defaultValue) throws OutOfMemoryError
+    {
+        // Only the row references are allocated, which the JVM hands out
+        // zeroed, so a new table costs nothing until states are visited.
+        return new ArrayStateMatrix(filename, new float[(int)numStates][],
+                numActions, defaultValue);
     }
 
     
     public static StateMatrix load(String filename, long numStates,
             int numActions) throws IOException, OutOfMemoryError
     {
-        StateMatrix stateMatrix;
-        ObjectInputStream objStream = new ObjectInputStream(
-                new FileInputStream(filename));
+        FileChannel channel = new FileInputStream(filename).getChannel();
 
         try {
-            stateMatrix = (ArrayStateMatrix)
-                objStream.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e.getMessage());
-        } finally {
-            objStream.close();
-        }
+            StateMatrixFile header = StateMatrixFile.read(channel);
+            header.check(numStates, numActions);
 
-        if (stateMatrix.getNumActions() != numActions
-                || stateMatrix.getNumStates() != numStates)
-            throw new IOException("Invalid number of states/actions " +
-                    "in the loaded file.");
+            // Rows are streamed through one direct buffer, so the heap
+            // never holds more than the matrix itself. Untouched rows hold
+            // the default of the backend that wrote the file, which is the
+            // one kept here.
+            ArrayStateMatrix matrix = new ArrayStateMatrix(filename,
+                    new float[(int)numStates][], numActions,
+                    header.defaultValue);
+            int rowSize = numActions * 4;
+            int rowsPerChunk = Math.max(1, StateMatrixFile.CHUNK_SIZE / rowSize);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(rowsPerChunk * rowSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            CRC32C crc = new CRC32C();
+            float[] row = new float[numActions];
 
-        return stateMatrix;
+            channel.position(StateMatrixFile.HEADER_SIZE);
+
+            for (int i = 0; i < numStates; ) {
+                int rows = Math.min(rowsPerChunk, (int)numStates - i);
+
+                buffer.clear().limit(rows * rowSize);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0)
+                        throw new IOException("Truncated state matrix file.");
+                }
+
+                buffer.flip();
+                crc.update(buffer);
+                buffer.rewind();
+
+                // Rows that were never moved off the default stay
+                // unallocated.
+                FloatBuffer floats = buffer.asFloatBuffer();
+                for (int j = 0; j < rows; ++j, ++i) {
+                    floats.get(row);
+
+                    if (!Arrays.equals(row, matrix.defaultRow)) {
+                        matrix.matrix[i] = row.clone();
+                        matrix.numVisitedStates.incrementAndGet();
+                    }
+                }
+            }
+
+            if (header.hasChecksum() && (int) crc.getValue() != header.checksum)
+                throw new IOException("Checksum mismatch in state matrix file.");
+
+            return matrix;
+        } finally {
+            channel.close();
+        }
     } 
 }
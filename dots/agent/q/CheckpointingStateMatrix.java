@@ -0,0 +1,575 @@
+package dots.agent.q;
+
+import dots.util.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+
+public class CheckpointingStateMatrix implements StateMatrix
+{
+    
+    public static final int DEFAULT_COMPACTION_INTERVAL = 10;
+
+    
+    // Above this many states the dirty rows are kept in hash sets instead
+    // of a bitmap, which would need one bit per state.
+    private static final long MAX_BITMAP_STATES = 1L << 32;
+
+    
+    // Bitmap words are allocated a page of 2^16 states at a time, once a
+    // row in the page is first marked.
+    private static final int PAGE_BITS = 16;
+
+    
+    private static final int STRIPE_BITS = 6;
+
+    
+    private static final VarHandle BITS =
+        MethodHandles.arrayElementVarHandle(long[].class);
+
+    
+    private static final VarHandle PAGES =
+        MethodHandles.arrayElementVarHandle(long[][].class);
+
+    
+    private final StateMatrix matrix;
+
+    
+    private final File log;
+
+    
+    private final int compactionInterval;
+
+    
+    private final int recordSize;
+
+    
+    private final StateSet dirty;
+
+    
+    private final ScheduledExecutorService scheduler;
+
+    
+    private final ByteBuffer buffer;
+
+    
+    private final CRC32C crc = new CRC32C();
+
+    
+    private FileChannel channel;
+
+    
+    private int numCheckpoints;
+
+    
+    private Logger logger;
+
+    
+    public CheckpointingStateMatrix(StateMatrix matrix, String logFilename,
+            long intervalMillis, int compactionInterval) throws IOException
+    {
+        this.matrix = matrix;
+        this.log = new File(logFilename);
+        this.compactionInterval = compactionInterval;
+        this.recordSize = 8 + matrix.getNumActions() * 4 + 4;
+        this.dirty = new StateSet(matrix.getNumStates());
+        this.buffer = ByteBuffer.allocateDirect(Math.max(recordSize,
+                    StateMatrixFile.CHUNK_SIZE / recordSize * recordSize))
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+        logger = Logger.getLogger(getClass().getPackage().getName());
+
+        // A log left behind means the last run never shut down cleanly, its
+        // rows are newer than anything the matrix itself saved. They are
+        // saved with the matrix before the log starts over.
+        if (log.isFile()) {
+            replay();
+            matrix.flush();
+        }
+
+        restartLog();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "checkpoint");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    logger.warning(String.format("Checkpoint to '%s' " +
+                                "failed: %s", log, e.getMessage()));
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    
+    public StateMatrix getMatrix()
+    {
+        return matrix;
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return matrix.getQ(state, action);
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        matrix.setQ(state, action, value);
+        dirty.add(state);
+    }
+
+    @Override
+    public float updateQ(long state, int action, float target,
+            float learningRate)
+    {
+        float value = matrix.updateQ(state, action, target, learningRate);
+        dirty.add(state);
+        return value;
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        if (!matrix.compareAndSetQ(state, action, expected, value))
+            return false;
+
+        dirty.add(state);
+        return true;
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        matrix.getRow(state, row);
+    }
+
+    @Override
+    public int getBestAction(long state, long[] mask)
+    {
+        return matrix.getBestAction(state, mask);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        return matrix.getMaxValue(state);
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return matrix.getNumActions();
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return matrix.getNumStates();
+    }
+
+    @Override
+    public long getNumVisitedStates()
+    {
+        return matrix.getNumVisitedStates();
+    }
+
+    public void shutdown()
+    {
+        try {
+            close();
+        } catch (IOException e) {
+            logger.warning(String.format("Saving the matrix failed, '%s' is " +
+                        "kept for the next run: %s", log, e.getMessage()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        boolean clean = false;
+
+        scheduler.shutdown();
+
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            checkpoint();
+            clean = true;
+        } catch (InterruptedException e) {
+            // The log stays behind and is replayed by the next run.
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warning(String.format("Checkpoint to '%s' failed: %s",
+                        log, e.getMessage()));
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                clean = false;
+            }
+        }
+
+        // The log is the only copy of its rows until the matrix's own file
+        // is saved, a failed save throws before it is deleted.
+        matrix.close();
+
+        if (clean)
+            log.delete();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        compact();
+    }
+
+    
+    synchronized void checkpoint() throws IOException
+    {
+        // Rows are unmarked before they are read, so an update racing with
+        // the checkpoint marks its row again for the next one. Training
+        // never waits on the log.
+        long start = System.nanoTime();
+        long[] states = dirty.drain();
+
+        if (states.length > 0) {
+            append(channel, states);
+            channel.force(false);
+        }
+
+        Metrics.checkpointed(System.nanoTime() - start);
+
+        if (++numCheckpoints % compactionInterval == 0)
+            compact();
+    }
+
+    
+    synchronized void compact() throws IOException
+    {
+        // The matrix's own file is brought up to date, after which nothing
+        // in the log is needed and it starts over empty. It never holds more
+        // than compactionInterval checkpoints. Rows updated meanwhile are
+        // still marked and go to the next checkpoint.
+        matrix.flush();
+        restartLog();
+    }
+
+    
+    private void restartLog() throws IOException
+    {
+        File temp = new File(log.getPath() + ".tmp");
+        FileChannel compacted = new RandomAccessFile(temp, "rw").getChannel();
+
+        try {
+            StateMatrixFile header = new StateMatrixFile(getNumStates(),
+                    getNumActions(), 0);
+            header.flags = StateMatrixFile.FLAG_LOG;
+
+            compacted.truncate(0);
+            header.write(compacted);
+            compacted.position(StateMatrixFile.HEADER_SIZE);
+            compacted.force(false);
+
+            Files.move(temp.toPath(), log.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            compacted.close();
+            throw e;
+        }
+
+        if (channel != null)
+            channel.close();
+        channel = compacted;
+    }
+
+    
+    private void append(FileChannel target, long[] states) throws IOException
+    {
+        int numActions = getNumActions();
+
+        buffer.clear();
+
+        for (long state : states) {
+            if (buffer.remaining() < recordSize)
+                write(target);
+
+            int start = buffer.position();
+
+            buffer.putLong(state);
+            for (int i = 0; i < numActions; ++i)
+                buffer.putFloat(matrix.getQ(state, i));
+
+            buffer.putInt(checksum(start));
+        }
+
+        write(target);
+    }
+
+    
+    private void write(FileChannel target) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            target.write(buffer);
+        buffer.clear();
+    }
+
+    
+    private int checksum(int start)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(start).limit(start + recordSize - 4);
+
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    
+    private void replay() throws IOException
+    {
+        FileChannel input = new RandomAccessFile(log, "r").getChannel();
+        int numActions = getNumActions();
+        long numRecords = 0;
+
+        try {
+            StateMatrixFile header = StateMatrixFile.read(input);
+            header.check(getNumStates(), numActions);
+
+            if ((header.flags & StateMatrixFile.FLAG_LOG) == 0)
+                throw new IOException("Not a checkpoint log.");
+
+            input.position(StateMatrixFile.HEADER_SIZE);
+            buffer.clear();
+
+            // Records are applied in order until the end of the log or the
+            // first torn one, which is where a crash cut the last append.
+            for (boolean end = false; !end; buffer.compact()) {
+                end = input.read(buffer) < 0;
+                buffer.flip();
+
+                while (buffer.remaining() >= recordSize) {
+                    int start = buffer.position();
+                    int expected = buffer.getInt(start + recordSize - 4);
+
+                    if (checksum(start) != expected) {
+                        logger.warning(String.format("Ignoring torn " +
+                                    "record at the end of '%s'.", log));
+                        end = true;
+                        break;
+                    }
+
+                    long state = buffer.getLong();
+                    for (int i = 0; i < numActions; ++i)
+                        matrix.setQ(state, i, buffer.getFloat());
+                    buffer.getInt();
+
+                    ++numRecords;
+                }
+            }
+        } finally {
+            input.close();
+        }
+
+        logger.info(String.format("Recovered %d rows from '%s'.",
+                    numRecords, log));
+    }
+
+    
+    private static final class StateSet
+    {
+        private final long[][] pages;
+
+        private final Stripe[] stripes;
+
+        StateSet(long numStates)
+        {
+            if (numStates <= MAX_BITMAP_STATES) {
+                pages = new long[(int) ((numStates + (1L << PAGE_BITS) - 1)
+                        >>> PAGE_BITS)][];
+                stripes = null;
+            } else {
+                pages = null;
+                stripes = new Stripe[1 << STRIPE_BITS];
+                for (int i = 0; i < stripes.length; ++i)
+                    stripes[i] = new Stripe();
+            }
+        }
+
+        void add(long state)
+        {
+            if (pages == null) {
+                long hash = state * 0x9e3779b97f4a7c15L;
+                stripes[(int) (hash >>> (64 - STRIPE_BITS))].add(state, hash);
+                return;
+            }
+
+            long[] page = page((int) (state >>> PAGE_BITS));
+            int index = (int) (state >>> 6) & ((1 << (PAGE_BITS - 6)) - 1);
+            long bit = 1L << state;
+
+            // Most updates go to a row that is marked already and only read
+            // the word. The fence keeps the update ahead of that read, as the
+            // locked or does, so a drain racing with it still sees the row.
+            VarHandle.fullFence();
+            if (((long) BITS.getOpaque(page, index) & bit) == 0)
+                BITS.getAndBitwiseOr(page, index, bit);
+        }
+
+        private long[] page(int number)
+        {
+            long[] page = (long[]) PAGES.getAcquire(pages, number);
+
+            if (page != null)
+                return page;
+
+            // Racing threads agree on the first page installed.
+            page = new long[1 << (PAGE_BITS - 6)];
+            long[] current = (long[]) PAGES.compareAndExchangeRelease(pages,
+                    number, null, page);
+
+            return current != null ? current : page;
+        }
+
+        long[] drain()
+        {
+            long[] states = new long[16];
+            int size = 0;
+
+            if (pages == null) {
+                for (Stripe stripe : stripes) {
+                    long[] keys = stripe.drain();
+
+                    if (size + keys.length > states.length)
+                        states = Arrays.copyOf(states, Math.max(
+                                    size + keys.length, size * 2));
+                    System.arraycopy(keys, 0, states, size, keys.length);
+                    size += keys.length;
+                }
+
+                return Arrays.copyOf(states, size);
+            }
+
+            for (int p = 0; p < pages.length; ++p) {
+                long[] page = (long[]) PAGES.getAcquire(pages, p);
+
+                if (page == null)
+                    continue;
+
+                for (int i = 0; i < page.length; ++i) {
+                    if ((long) BITS.getVolatile(page, i) == 0)
+                        continue;
+
+                    long word = (long) BITS.getAndSet(page, i, 0L);
+
+                    long base = ((long) p << PAGE_BITS) + ((long) i << 6);
+                    for (; word != 0; word &= word - 1) {
+                        if (size == states.length)
+                            states = Arrays.copyOf(states, size * 2);
+                        states[size++] = base
+                            + Long.numberOfTrailingZeros(word);
+                    }
+                }
+            }
+
+            return Arrays.copyOf(states, size);
+        }
+    }
+
+    
+    // An open addressing set of states under its own lock. States are kept
+    // unboxed, so marking a row allocates nothing but the odd resize.
+    private static final class Stripe
+    {
+        private long[] keys = new long[16];
+
+        // 0 marks an empty slot, state 0 itself is kept apart.
+        private boolean zero;
+
+        private int size;
+
+        synchronized void add(long state, long hash)
+        {
+            if (state == 0) {
+                zero = true;
+                return;
+            }
+
+            int mask = keys.length - 1;
+            int i = (int) (hash >>> 16) & mask;
+
+            for (; keys[i] != 0; i = (i + 1) & mask)
+                if (keys[i] == state)
+                    return;
+
+            keys[i] = state;
+
+            if (++size * 2 > keys.length)
+                resize();
+        }
+
+        synchronized long[] drain()
+        {
+            long[] states = new long[size + (zero ? 1 : 0)];
+            int count = 0;
+
+            if (zero)
+                states[count++] = 0;
+            for (long key : keys)
+                if (key != 0)
+                    states[count++] = key;
+
+            Arrays.fill(keys, 0);
+            zero = false;
+            size = 0;
+
+            return states;
+        }
+
+        private void resize()
+        {
+            long[] old = keys;
+            int mask = old.length * 2 - 1;
+
+            keys = new long[old.length * 2];
+
+            for (long key : old) {
+                if (key == 0)
+                    continue;
+
+                int i = (int) ((key * 0x9e3779b97f4a7c15L) >>> 16) & mask;
+                while (keys[i] != 0)
+                    i = (i + 1) & mask;
+                keys[i] = key;
+            }
+        }
+    }
+}
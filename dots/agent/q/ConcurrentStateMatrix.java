@@ -0,0 +1,108 @@
+package dots.agent.q;
+
+import java.io.IOException;
+
+
+public class ConcurrentStateMatrix implements StateMatrix
+{
+    
+    private final StateMatrix matrix;
+
+    
+    public ConcurrentStateMatrix(StateMatrix matrix)
+    {
+        this.matrix = matrix;
+    }
+
+    
+    public StateMatrix getMatrix()
+    {
+        return matrix;
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return matrix.getQ(state, action);
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        matrix.setQ(state, action, value);
+    }
+
+    @Override
+    public float updateQ(long state, int action, float target,
+            float learningRate)
+    {
+        return matrix.atomicUpdateQ(state, action, target, learningRate);
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        return matrix.compareAndSetQ(state, action, expected, value);
+    }
+
+    @Override
+    public float atomicUpdateQ(long state, int action, float target,
+            float learningRate)
+    {
+        return matrix.atomicUpdateQ(state, action, target, learningRate);
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        matrix.getRow(state, row);
+    }
+
+    @Override
+    public int getBestAction(long state, long[] mask)
+    {
+        return matrix.getBestAction(state, mask);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        return matrix.getMaxValue(state);
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return matrix.getNumActions();
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return matrix.getNumStates();
+    }
+
+    @Override
+    public long getNumVisitedStates()
+    {
+        return matrix.getNumVisitedStates();
+    }
+
+    public void shutdown()
+    {
+        matrix.shutdown();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        matrix.close();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        matrix.flush();
+    }
+}
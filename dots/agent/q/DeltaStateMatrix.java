@@ -0,0 +1,120 @@
+package dots.agent.q;
+
+import java.io.IOException;
+
+
+public class DeltaStateMatrix implements StateMatrix
+{
+    
+    public static final int DEFAULT_MERGE_INTERVAL = 4096;
+
+    
+    private final StateMatrix matrix;
+
+    
+    private final SparseStateMatrix deltas;
+
+    
+    private final int mergeInterval;
+
+    
+    private int numUpdates;
+
+    
+    public DeltaStateMatrix(StateMatrix matrix)
+    {
+        this(matrix, DEFAULT_MERGE_INTERVAL);
+    }
+
+    
+    public DeltaStateMatrix(StateMatrix matrix, int mergeInterval)
+    {
+        this.matrix = matrix;
+        this.mergeInterval = mergeInterval;
+        this.deltas = new SparseStateMatrix(null, matrix.getNumStates(),
+                matrix.getNumActions(), 0,
+                SparseStateMatrix.DEFAULT_LOAD_FACTOR,
+                SparseStateMatrix.DEFAULT_GROWTH_FACTOR);
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return matrix.getQ(state, action) + deltas.getQ(state, action);
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        deltas.setQ(state, action, value - matrix.getQ(state, action));
+
+        if (++numUpdates >= mergeInterval)
+            merge();
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        float max = getQ(state, 0);
+
+        for (int i = 1; i < getNumActions(); ++i)
+            max = Math.max(max, getQ(state, i));
+
+        return max;
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return matrix.getNumActions();
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return matrix.getNumStates();
+    }
+
+    
+    public void merge()
+    {
+        int numActions = getNumActions();
+
+        // Other workers merge into the same matrix, so the shared matrix is
+        // the lock that serializes merges.
+        synchronized (matrix) {
+            for (int slot = 0; slot < deltas.getCapacity(); ++slot) {
+                if (!deltas.isUsed(slot))
+                    continue;
+
+                long state = deltas.getState(slot);
+                for (int i = 0; i < numActions; ++i) {
+                    float delta = deltas.getQ(state, i);
+                    if (delta != 0)
+                        matrix.setQ(state, i, matrix.getQ(state, i) + delta);
+                }
+            }
+        }
+
+        deltas.clear();
+        numUpdates = 0;
+    }
+
+    public void shutdown()
+    {
+        merge();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        merge();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        merge();
+        matrix.flush();
+    }
+}
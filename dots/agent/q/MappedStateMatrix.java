@@ -0,0 +1,224 @@
+package dots.agent.q;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+public class MappedStateMatrix implements StateMatrix
+{
+    
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    
+    private static final VarHandle FLOAT = MethodHandles.byteBufferViewVarHandle(
+            float[].class, ByteOrder.LITTLE_ENDIAN);
+
+    
+    private RandomAccessFile file;
+
+    
+    private FileChannel channel;
+
+    
+    private MappedByteBuffer[] chunks;
+
+    
+    private final long numStates;
+
+    
+    private final int numActions;
+
+    
+    private final int chunkShift;
+
+    
+    private final long chunkMask;
+
+    
+    private MappedStateMatrix(RandomAccessFile file, long numStates,
+            int numActions) throws IOException
+    {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.numStates = numStates;
+        this.numActions = numActions;
+
+        // Each chunk holds a power of two rows so that a state is split into
+        // chunk and row with a shift and a mask.
+        long rowSize = (long) numActions * 4;
+        chunkShift = 63 - Long.numberOfLeadingZeros(
+                Math.max(1, MAX_CHUNK_SIZE / rowSize));
+        chunkMask = (1L << chunkShift) - 1;
+
+        int numChunks = (int) ((numStates + chunkMask) >>> chunkShift);
+        chunks = new MappedByteBuffer[numChunks];
+
+        for (int i = 0; i < numChunks; ++i) {
+            long firstRow = (long) i << chunkShift;
+            long rows = Math.min(1L << chunkShift, numStates - firstRow);
+
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    StateMatrixFile.HEADER_SIZE + firstRow * rowSize,
+                    rows * rowSize);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return chunks[(int) (state >>> chunkShift)].getFloat(
+                ((int) (state & chunkMask) * numActions + action) << 2);
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        chunks[(int) (state >>> chunkShift)].putFloat(
+                ((int) (state & chunkMask) * numActions + action) << 2, value);
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        ByteBuffer chunk = chunks[(int) (state >>> chunkShift)];
+        int offset = ((int) (state & chunkMask) * numActions) << 2;
+
+        for (int i = 0; i < row.length; ++i)
+            row[i] = chunk.getFloat(offset + (i << 2));
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        // Rows start at 4 byte aligned file offsets, which keeps every cell
+        // aligned in the mapping as atomic access requires.
+        return FLOAT.compareAndSet(chunks[(int) (state >>> chunkShift)],
+                ((int) (state & chunkMask) * numActions + action) << 2,
+                expected, value);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        ByteBuffer chunk = chunks[(int) (state >>> chunkShift)];
+        int offset = ((int) (state & chunkMask) * numActions) << 2;
+        float max = chunk.getFloat(offset);
+
+        for (int i = 1; i < numActions; ++i) {
+            float value = chunk.getFloat(offset + (i << 2));
+            if (value > max)
+                max = value;
+        }
+
+        return max;
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return numActions;
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return numStates;
+    }
+
+    public void shutdown()
+    {
+        try {
+            close();
+        } catch (IOException e) {
+            // Nothing we can do here, the OS still owns the dirty pages.
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (chunks == null)
+            return;
+
+        try {
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            channel.close();
+            file.close();
+        } finally {
+            chunks = null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    
+    public static MappedStateMatrix create(String filename, long numStates,
+            int numActions) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+
+        try {
+            // Extending the file leaves a hole, so untouched states read as
+            // zero and cost nothing on disk until written.
+            file.setLength(0);
+            file.setLength(StateMatrixFile.HEADER_SIZE
+                    + numStates * numActions * 4);
+
+            new StateMatrixFile(numStates, numActions, 0)
+                .write(file.getChannel());
+
+            return new MappedStateMatrix(file, numStates, numActions);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    
+    public static MappedStateMatrix load(String filename, long numStates,
+            int numActions) throws IOException
+    {
+        if (!new File(filename).isFile())
+            throw new FileNotFoundException(filename);
+
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+
+        try {
+            StateMatrixFile header = StateMatrixFile.read(file.getChannel());
+            header.check(numStates, numActions);
+
+            if (file.length() < StateMatrixFile.HEADER_SIZE
+                    + numStates * numActions * 4)
+                throw new IOException("Truncated state matrix file.");
+
+            // Rows are modified in place from here on, which a checksum
+            // written by another backend would no longer match.
+            if (header.hasChecksum()) {
+                header.flags &= ~StateMatrixFile.FLAG_CHECKSUM;
+                header.checksum = 0;
+                header.write(file.getChannel());
+            }
+
+            return new MappedStateMatrix(file, numStates, numActions);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+}
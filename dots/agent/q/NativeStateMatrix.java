@@ -28,9 +28,19 @@ public class NativeStateMatrix implements StateMatrix
     private static native void c_setQ(int fd, long state, int action, float value);
 
     
+    private static native boolean c_compareAndSetQ(int fd, long state,
+            int action, float expected, float value);
+
+    
     private static native float c_getMaxValue(int fd, long state);
 
     
+    private static native void c_getRow(int fd, long state, float[] row);
+
+    
+    private static native int c_getBestAction(int fd, long state, long[] mask);
+
+    
     private static native int c_getNumActions(int fd);
 
     
@@ -82,6 +92,26 @@ public class NativeStateMatrix implements StateMatrix
         NativeStateMatrix.c_setQ(descriptor, state, action, value);
     }
 
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        return NativeStateMatrix.c_compareAndSetQ(descriptor, state, action,
+                expected, value);
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        NativeStateMatrix.c_getRow(descriptor, state, row);
+    }
+
+    @Override
+    public int getBestAction(long state, long[] mask)
+    {
+        return NativeStateMatrix.c_getBestAction(descriptor, state, mask);
+    }
+
     @Override
     public float getMaxValue(long state)
     {
@@ -102,8 +132,23 @@ public class NativeStateMatrix implements StateMatrix
 
     public void shutdown()
     {
-        if (NativeStateMatrix.c_save(descriptor) != 0) {
+        try {
+            close();
+        } catch (IOException e) {
             // Nothing we can do here.
         }
     }
+
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (NativeStateMatrix.c_save(descriptor) != 0)
+            throw new IOException("Failed to save the native matrix.");
+    }
 }
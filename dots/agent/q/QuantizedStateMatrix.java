@@ -0,0 +1,418 @@
+package dots.agent.q;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+
+public class QuantizedStateMatrix implements StateMatrix
+{
+    
+    public enum Encoding
+    {
+        // IEEE 754 half precision.
+        HALF(StateMatrixFile.ENCODING_FLOAT16, 2, 1),
+
+        // Signed fixed point, value * scale in 16 and 8 bits.
+        INT16(StateMatrixFile.ENCODING_INT16, 2, 256),
+        INT8(StateMatrixFile.ENCODING_INT8, 1, 1);
+
+        final int id;
+
+        final int size;
+
+        public final float defaultScale;
+
+        Encoding(int id, int size, float defaultScale)
+        {
+            this.id = id;
+            this.size = size;
+            this.defaultScale = defaultScale;
+        }
+    }
+
+    
+    public enum Rounding
+    {
+        NEAREST, STOCHASTIC
+    }
+
+    
+    private static final long MAX_PAGE_SIZE = 1L << 30;
+
+    
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(
+            short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(
+            int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    
+    private final String filename;
+
+    
+    private final long numStates;
+
+    
+    private final int numActions;
+
+    
+    private final Encoding encoding;
+
+    
+    private final Rounding rounding;
+
+    
+    private final float scale;
+
+    
+    private final int minCode;
+
+    
+    private final int maxCode;
+
+    
+    private final byte[][] pages;
+
+    
+    private final int pageShift;
+
+    
+    private final long pageMask;
+
+    
+    private final int rowSize;
+
+    
+    public QuantizedStateMatrix(String filename, long numStates,
+            int numActions, Encoding encoding, Rounding rounding, float scale)
+    {
+        if (encoding != Encoding.HALF && !(scale > 0))
+            throw new IllegalArgumentException(String.format(
+                        "Scale must be positive, got %f.", scale));
+
+        this.filename = filename;
+        this.numStates = numStates;
+        this.numActions = numActions;
+        this.encoding = encoding;
+        this.rounding = rounding;
+        this.scale = encoding == Encoding.HALF ? 1 : scale;
+        this.maxCode = encoding == Encoding.INT8
+            ? Byte.MAX_VALUE : Short.MAX_VALUE;
+        this.minCode = encoding == Encoding.INT8
+            ? Byte.MIN_VALUE : Short.MIN_VALUE;
+        this.rowSize = numActions * encoding.size;
+
+        // Pages hold a power of two rows, like the chunks of the mapped
+        // backend, so tables beyond 2 GB need no special casing.
+        pageShift = 63 - Long.numberOfLeadingZeros(
+                Math.max(1, MAX_PAGE_SIZE / rowSize));
+        pageMask = (1L << pageShift) - 1;
+        pages = new byte[(int) ((numStates + pageMask) >>> pageShift)][];
+
+        for (int i = 0; i < pages.length; ++i) {
+            // Rounded up to whole ints, compareAndSetQ works on the int that
+            // holds a cell.
+            pages[i] = new byte[(pageLength(i) + 3) & ~3];
+        }
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return decode(pages[(int) (state >>> pageShift)],
+                offset(state, action));
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        byte[] page = pages[(int) (state >>> pageShift)];
+        int offset = offset(state, action);
+        int bits = encode(value, noise());
+
+        if (encoding.size == 2)
+            SHORT.set(page, offset, (short) bits);
+        else
+            page[offset] = (byte) bits;
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        byte[] page = pages[(int) (state >>> pageShift)];
+        int offset = offset(state, 0);
+
+        // One loop per encoding keeps the choice out of the inner loop.
+        if (encoding == Encoding.HALF) {
+            for (int i = 0; i < row.length; ++i)
+                row[i] = halfToFloat((short) SHORT.get(page, offset + 2 * i));
+        } else if (encoding == Encoding.INT16) {
+            for (int i = 0; i < row.length; ++i)
+                row[i] = (short) SHORT.get(page, offset + 2 * i) / scale;
+        } else {
+            for (int i = 0; i < row.length; ++i)
+                row[i] = page[offset + i] / scale;
+        }
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        byte[] page = pages[(int) (state >>> pageShift)];
+        int offset = offset(state, action);
+        int mask = encoding.size == 2 ? 0xffff : 0xff;
+        int shift = (offset & 3) << 3;
+        int word = offset & ~3;
+        int from = encode(expected, -1) & mask;
+        int to = encode(value, noise()) & mask;
+
+        // There is no compare-and-set on 8 or 16 bits, the cell is swapped
+        // as part of the int holding it instead.
+        for (;;) {
+            int current = (int) INT.getVolatile(page, word);
+
+            if (((current >>> shift) & mask) != from)
+                return false;
+
+            if (INT.compareAndSet(page, word, current,
+                        (current & ~(mask << shift)) | (to << shift)))
+                return true;
+        }
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        byte[] page = pages[(int) (state >>> pageShift)];
+        int offset = offset(state, 0);
+        float max = decode(page, offset);
+
+        for (int i = 1; i < numActions; ++i)
+            max = Math.max(max, decode(page, offset + i * encoding.size));
+
+        return max;
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return numActions;
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return numStates;
+    }
+
+    public void shutdown()
+    {
+        try {
+            save();
+        } catch (IOException e) {
+            // We can't recover here.
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        save();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        save();
+    }
+
+    
+    void save() throws IOException
+    {
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        CRC32C crc = new CRC32C();
+        StateMatrixFile header = new StateMatrixFile(numStates, numActions, 0);
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+
+        header.encoding = encoding.id;
+        header.scale = scale;
+
+        try {
+            channel.truncate(0);
+            channel.position(StateMatrixFile.HEADER_SIZE);
+
+            // Cells are already in file order, pages are written as they are.
+            for (int i = 0; i < pages.length; ++i) {
+                ByteBuffer buffer = ByteBuffer.wrap(pages[i], 0,
+                        pageLength(i));
+
+                crc.update(buffer);
+                buffer.rewind();
+
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+
+            header.setChecksum((int) crc.getValue());
+            header.write(channel);
+        } finally {
+            channel.close();
+        }
+
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    
+    private int pageLength(int page)
+    {
+        long rows = Math.min(1L << pageShift,
+                numStates - ((long) page << pageShift));
+        return (int) (rows * rowSize);
+    }
+
+    
+    private int offset(long state, int action)
+    {
+        return (int) (state & pageMask) * rowSize + action * encoding.size;
+    }
+
+    
+    private float decode(byte[] page, int offset)
+    {
+        if (encoding == Encoding.HALF)
+            return halfToFloat((short) SHORT.get(page, offset));
+        else if (encoding == Encoding.INT16)
+            return (short) SHORT.get(page, offset) / scale;
+        else
+            return page[offset] / scale;
+    }
+
+    
+    // Rounding noise in [0, 1) as 24 bits, or -1 for round to nearest.
+    private int noise()
+    {
+        return rounding == Rounding.STOCHASTIC
+            ? ThreadLocalRandom.current().nextInt() >>> 8 : -1;
+    }
+
+    
+    private int encode(float value, int noise)
+    {
+        if (encoding == Encoding.HALF)
+            return floatToHalf(value, noise < 0 ? 0x1000 : noise >>> 11);
+
+        // Adding noise uniform in [0, 1) before the floor rounds up with a
+        // probability equal to the fraction, so updates smaller than one
+        // step still move the value on average.
+        float u = noise < 0 ? 0.5f : noise * 0x1p-24f;
+        int q = (int) Math.floor(value * scale + u);
+
+        return Math.max(minCode, Math.min(maxCode, q));
+    }
+
+    
+    static float halfToFloat(short half)
+    {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        if (exponent == 0x1f)
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23)
+                | (mantissa << 13));
+    }
+
+    
+    // noise is added to the 13 mantissa bits that are cut off, 0x1000 rounds
+    // to nearest and a uniform value in [0, 0x1fff] rounds stochastically.
+    // Values out of range saturate at the largest finite half.
+    static short floatToHalf(float value, int noise)
+    {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+
+        if (abs > 0x7f800000)
+            return (short) (sign | 0x7e00);
+
+        // Below the smallest normal half the step is a fixed 2^-24.
+        if (abs < 0x38800000)
+            return (short) (sign | (int) (Float.intBitsToFloat(abs) * 0x1p24f
+                        + noise * 0x1p-13f));
+
+        return (short) (sign | Math.min(0x7bff,
+                    (int) (((long) abs - 0x38000000 + noise) >>> 13)));
+    }
+
+    
+    public static QuantizedStateMatrix create(String filename, long numStates,
+            int numActions, Encoding encoding, Rounding rounding, float scale)
+    {
+        return new QuantizedStateMatrix(filename, numStates, numActions,
+                encoding, rounding, scale);
+    }
+
+    
+    public static QuantizedStateMatrix load(String filename, long numStates,
+            int numActions, Encoding encoding, Rounding rounding)
+        throws IOException
+    {
+        FileChannel channel = new FileInputStream(filename).getChannel();
+
+        try {
+            StateMatrixFile header = StateMatrixFile.read(channel);
+            header.check(numStates, numActions, encoding.id);
+
+            // The scale the file was written with is the one its cells
+            // mean, whatever the caller would pick for a new table.
+            QuantizedStateMatrix matrix = new QuantizedStateMatrix(filename,
+                    numStates, numActions, encoding, rounding, header.scale);
+            CRC32C crc = new CRC32C();
+
+            channel.position(StateMatrixFile.HEADER_SIZE);
+
+            for (int i = 0; i < matrix.pages.length; ++i) {
+                ByteBuffer buffer = ByteBuffer.wrap(matrix.pages[i], 0,
+                        matrix.pageLength(i));
+
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0)
+                        throw new IOException("Truncated state matrix file.");
+                }
+
+                buffer.flip();
+                crc.update(buffer);
+            }
+
+            if (header.hasChecksum() && (int) crc.getValue() != header.checksum)
+                throw new IOException("Checksum mismatch in state matrix file.");
+
+            return matrix;
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package dots.agent.q;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+
+public class SparseStateMatrix implements StateMatrix
+{
+    
+    static final int MAGIC = 0x444e4253;
+
+    
+    static final int VERSION = 1;
+
+    
+    public static final float DEFAULT_LOAD_FACTOR = 0.6f;
+
+    
+    public static final int DEFAULT_GROWTH_FACTOR = 2;
+
+    
+    static final float DEFAULT_Q_VALUE = 0.0f;
+
+    
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    
+    private final String filename;
+
+    
+    private final long numStates;
+
+    
+    private final int numActions;
+
+    
+    private final float defaultValue;
+
+    
+    private final float loadFactor;
+
+    
+    private final int growthFactor;
+
+    
+    private static final VarHandle SLOTS =
+        MethodHandles.arrayElementVarHandle(int[].class);
+
+    
+    private static final VarHandle VALUES =
+        MethodHandles.arrayElementVarHandle(float[].class);
+
+    
+    private static final class Table
+    {
+        
+        final long[] keys;
+
+        
+        final int[] slots;
+
+        
+        final float[] values;
+
+        
+        final int shift;
+
+        
+        final int threshold;
+
+        
+        Table(long[] keys, int[] slots, float[] values, float loadFactor)
+        {
+            this.keys = keys;
+            this.slots = slots;
+            this.values = values;
+            this.shift = 64 - Integer.numberOfTrailingZeros(slots.length);
+            this.threshold = (int) (slots.length * loadFactor);
+        }
+    }
+
+    
+    private volatile Table table;
+
+    
+    private int size;
+
+    
+    public SparseStateMatrix(String filename, long numStates, int numActions,
+            float defaultValue, float loadFactor, int growthFactor)
+    {
+        if (loadFactor <= 0 || loadFactor >= 1)
+            throw new IllegalArgumentException(String.format(
+                        "Load factor must be in range (0, 1), got %f.",
+                        loadFactor));
+
+        if (growthFactor < 2 || Integer.bitCount(growthFactor) != 1)
+            throw new IllegalArgumentException(String.format(
+                        "Growth factor must be a power of two >= 2, got %d.",
+                        growthFactor));
+
+        this.filename = filename;
+        this.numStates = numStates;
+        this.numActions = numActions;
+        this.defaultValue = defaultValue;
+        this.loadFactor = loadFactor;
+        this.growthFactor = growthFactor;
+
+        clear();
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        Table t = table;
+        int row = find(t, state);
+        return row < 0 ? defaultValue : t.values[row * numActions + action];
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        Table t = table;
+        int index = find(t, state);
+
+        if (index < 0)
+            Arrays.fill(row, defaultValue);
+        else
+            System.arraycopy(t.values, index * numActions, row, 0, row.length);
+    }
+
+    @Override
+    public synchronized void setQ(long state, int action, float value)
+    {
+        int row = insert(state);
+        table.values[row * numActions + action] = value;
+    }
+
+    @Override
+    public synchronized boolean compareAndSetQ(long state, int action,
+            float expected, float value)
+    {
+        int row = insert(state);
+        return VALUES.compareAndSet(table.values, row * numActions + action,
+                expected, value);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        Table t = table;
+        int row = find(t, state);
+
+        if (row < 0)
+            return defaultValue;
+
+        int offset = row * numActions;
+        float max = t.values[offset];
+
+        for (int i = 1; i < numActions; ++i)
+            if (t.values[offset + i] > max)
+                max = t.values[offset + i];
+
+        return max;
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return numActions;
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return numStates;
+    }
+
+    @Override
+    public long getNumVisitedStates()
+    {
+        return size();
+    }
+
+    
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    
+    public synchronized void clear()
+    {
+        table = new Table(new long[INITIAL_CAPACITY], new int[INITIAL_CAPACITY],
+                new float[INITIAL_CAPACITY * numActions], loadFactor);
+        size = 0;
+    }
+
+    
+    int getCapacity()
+    {
+        return table.slots.length;
+    }
+
+    
+    long getState(int slot)
+    {
+        Table t = table;
+        return (int) SLOTS.getAcquire(t.slots, slot) == 0 ? -1 : t.keys[slot];
+    }
+
+    
+    boolean isUsed(int slot)
+    {
+        return (int) SLOTS.getAcquire(table.slots, slot) != 0;
+    }
+
+    public void shutdown()
+    {
+        try {
+            save();
+        } catch (IOException e) {
+            // We can't recover here.
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        save();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        save();
+    }
+
+    
+    public synchronized void save() throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(filename), 1 << 16));
+        Table t = table;
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(numStates);
+            out.writeInt(numActions);
+            out.writeFloat(defaultValue);
+            out.writeInt(size);
+
+            for (int i = 0; i < t.slots.length; ++i) {
+                if (t.slots[i] == 0)
+                    continue;
+
+                int offset = (t.slots[i] - 1) * numActions;
+                out.writeLong(t.keys[i]);
+                for (int j = 0; j < numActions; ++j)
+                    out.writeFloat(t.values[offset + j]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    
+    private int find(Table t, long state)
+    {
+        int[] slots = t.slots;
+        int mask = slots.length - 1;
+
+        // Readers never lock. A slot is published with release semantics
+        // after its key and row, so an acquired non-empty slot is complete.
+        for (int i = index(t, state); ; i = (i + 1) & mask) {
+            int slot = (int) SLOTS.getAcquire(slots, i);
+            if (slot == 0)
+                return -1;
+            if (t.keys[i] == state)
+                return slot - 1;
+        }
+    }
+
+    
+    private int insert(long state)
+    {
+        Table t = table;
+        int mask = t.slots.length - 1;
+        int i = index(t, state);
+
+        for (; t.slots[i] != 0; i = (i + 1) & mask)
+            if (t.keys[i] == state)
+                return t.slots[i] - 1;
+
+        if (size >= t.threshold) {
+            table = rehash(t, t.slots.length * growthFactor, t.values);
+            return insert(state);
+        }
+
+        int row = size;
+        float[] values = t.values;
+
+        if ((long) (row + 1) * numActions > values.length) {
+            long length = Math.min((long) values.length * growthFactor,
+                    (long) t.slots.length * numActions);
+            if (length > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("SparseStateMatrix is full.");
+
+            // Readers may still hold the old table, so the grown pool is
+            // published as part of a new one. Its keys and slots are copies
+            // too, a row published in the old arrays would be out of range
+            // of the old pool.
+            table = t = new Table(t.keys.clone(), t.slots.clone(),
+                    Arrays.copyOf(values, (int) length), loadFactor);
+            values = t.values;
+        }
+
+        int offset = row * numActions;
+        for (int j = 0; j < numActions; ++j)
+            values[offset + j] = defaultValue;
+
+        t.keys[i] = state;
+        SLOTS.setRelease(t.slots, i, row + 1);
+        ++size;
+
+        return row;
+    }
+
+    
+    private static int index(Table t, long state)
+    {
+        return (int) ((state * HASH_MULTIPLIER) >>> t.shift);
+    }
+
+    
+    private Table rehash(Table old, int capacity, float[] values)
+    {
+        Table t = new Table(new long[capacity], new int[capacity], values,
+                loadFactor);
+        int mask = capacity - 1;
+
+        for (int i = 0; i < old.slots.length; ++i) {
+            if (old.slots[i] == 0)
+                continue;
+
+            int j = index(t, old.keys[i]);
+            while (t.slots[j] != 0)
+                j = (j + 1) & mask;
+
+            t.keys[j] = old.keys[i];
+            t.slots[j] = old.slots[i];
+        }
+
+        return t;
+    }
+
+    
+    public static SparseStateMatrix create(String filename, long numStates,
+            int numActions, float loadFactor, int growthFactor)
+    {
+        return new SparseStateMatrix(filename, numStates, numActions,
+                DEFAULT_Q_VALUE, loadFactor, growthFactor);
+    }
+
+    
+    public static SparseStateMatrix load(String filename, long numStates,
+            int numActions, float loadFactor, int growthFactor)
+            throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(filename), 1 << 16));
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a SparseStateMatrix file.");
+
+            if (in.readLong() != numStates || in.readInt() != numActions)
+                throw new IOException("Invalid number of states/actions " +
+                        "in the loaded file.");
+
+            SparseStateMatrix matrix = new SparseStateMatrix(filename,
+                    numStates, numActions, in.readFloat(), loadFactor,
+                    growthFactor);
+
+            int rows = in.readInt();
+            for (int i = 0; i < rows; ++i) {
+                long state = in.readLong();
+                for (int j = 0; j < numActions; ++j)
+                    matrix.setQ(state, j, in.readFloat());
+            }
+
+            return matrix;
+        } catch (EOFException e) {
+            throw new IOException("Truncated SparseStateMatrix file.");
+        } finally {
+            in.close();
+        }
+    }
+}
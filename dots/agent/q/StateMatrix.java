@@ -1,6 +1,7 @@
 package dots.agent.q;
 
 import dots.util.ShutdownHook;
+import java.io.IOException;
 
 
 public interface StateMatrix extends ShutdownHook
@@ -19,4 +20,94 @@ public interface StateMatrix extends ShutdownHook
 
     
     public long getNumStates();
+
+    
+    // States whose row has been written, or -1 where the backend does not
+    // keep track.
+    public default long getNumVisitedStates()
+    {
+        return -1;
+    }
+
+    
+    public default void getRow(long state, float[] row)
+    {
+        for (int i = 0; i < row.length; ++i)
+            row[i] = getQ(state, i);
+    }
+
+    
+    public default int getBestAction(long state, long[] mask)
+    {
+        int best = -1;
+        float max = 0;
+
+        // Ties go to the lowest action, as in a plain scan over the mask.
+        for (int i = 0; i < mask.length; ++i) {
+            for (long word = mask[i]; word != 0; word &= word - 1) {
+                int action = (i << 6) + Long.numberOfTrailingZeros(word);
+                float q = getQ(state, action);
+
+                if (best < 0 || q > max) {
+                    best = action;
+                    max = q;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    
+    public default float updateQ(long state, int action, float target,
+            float learningRate)
+    {
+        float q = getQ(state, action);
+        q += learningRate * (target - q);
+        setQ(state, action, q);
+        return q;
+    }
+
+    
+    public default boolean compareAndSetQ(long state, int action,
+            float expected, float value)
+    {
+        synchronized (this) {
+            if (Float.floatToRawIntBits(getQ(state, action))
+                    != Float.floatToRawIntBits(expected))
+                return false;
+
+            setQ(state, action, value);
+            return true;
+        }
+    }
+
+    
+    // Saves and releases the matrix like shutdown, but a failed save is
+    // thrown instead of dropped.
+    public default void close() throws IOException
+    {
+        shutdown();
+    }
+
+    
+    // Brings the matrix's own file up to date and keeps the matrix open.
+    public default void flush() throws IOException
+    {
+        throw new IOException(getClass().getSimpleName()
+                + " can not be saved while open.");
+    }
+
+    
+    public default float atomicUpdateQ(long state, int action, float target,
+            float learningRate)
+    {
+        for (;;) {
+            float q = getQ(state, action);
+            float value = q + learningRate * (target - q);
+
+            if (compareAndSetQ(state, action, q, value))
+                return value;
+        }
+    }
 }
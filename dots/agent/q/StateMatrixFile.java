@@ -0,0 +1,164 @@
+package dots.agent.q;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+final class StateMatrixFile
+{
+    
+    static final int MAGIC = 0x444e4251;
+
+    
+    static final int VERSION = 2;
+
+    
+    static final int HEADER_SIZE = 64;
+
+    
+    static final int FLAG_CHECKSUM = 1;
+
+    
+    // Set on checkpoint logs, whose header is followed by row records
+    // instead of the dense rows.
+    static final int FLAG_LOG = 2;
+
+    
+    static final int CHUNK_SIZE = 1 << 20;
+
+    
+    static final int ENCODING_FLOAT32 = 0;
+
+    
+    static final int ENCODING_FLOAT16 = 1;
+
+    
+    static final int ENCODING_INT16 = 2;
+
+    
+    static final int ENCODING_INT8 = 3;
+
+    
+    final long numStates;
+
+    
+    final int numActions;
+
+    
+    final float defaultValue;
+
+    
+    int flags;
+
+    
+    int checksum;
+
+    
+    int encoding = ENCODING_FLOAT32;
+
+    
+    float scale = 1;
+
+    
+    StateMatrixFile(long numStates, int numActions, float defaultValue)
+    {
+        this.numStates = numStates;
+        this.numActions = numActions;
+        this.defaultValue = defaultValue;
+    }
+
+    
+    void setChecksum(int checksum)
+    {
+        this.checksum = checksum;
+        flags |= FLAG_CHECKSUM;
+    }
+
+    
+    boolean hasChecksum()
+    {
+        return (flags & FLAG_CHECKSUM) != 0;
+    }
+
+    
+    void check(long numStates, int numActions) throws IOException
+    {
+        check(numStates, numActions, ENCODING_FLOAT32);
+    }
+
+    
+    void check(long numStates, int numActions, int encoding)
+        throws IOException
+    {
+        if (this.numStates != numStates || this.numActions != numActions)
+            throw new IOException("Invalid number of states/actions " +
+                    "in the loaded file.");
+
+        if (this.encoding != encoding)
+            throw new IOException(String.format("Q values in the loaded " +
+                        "file have encoding %d, expected %d.", this.encoding,
+                        encoding));
+    }
+
+    
+    void write(FileChannel channel) throws IOException
+    {
+        // Layout, all little endian:
+        //   0 magic, 4 version, 8 number of states (long),
+        //  16 number of actions, 20 flags, 24 default Q value (float),
+        //  28 CRC32C of the rows, 32 encoding of the Q values, 36 scale of
+        //  integer encodings (float), 40 reserved up to HEADER_SIZE.
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(numStates);
+        header.putInt(numActions);
+        header.putInt(flags);
+        header.putFloat(defaultValue);
+        header.putInt(checksum);
+        header.putInt(encoding);
+        header.putFloat(scale);
+        header.rewind();
+
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    
+    static StateMatrixFile read(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("Truncated state matrix header.");
+        }
+
+        header.rewind();
+
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a state matrix file.");
+
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported state matrix file version " +
+                    version + ".");
+
+        long numStates = header.getLong();
+        int numActions = header.getInt();
+        int flags = header.getInt();
+
+        StateMatrixFile file = new StateMatrixFile(numStates, numActions,
+                header.getFloat());
+        file.flags = flags;
+        file.checksum = header.getInt();
+        file.encoding = header.getInt();
+        file.scale = header.getFloat();
+
+        return file;
+    }
+}
@@ -0,0 +1,134 @@
+package dots.agent.q;
+
+import java.io.IOException;
+
+
+public class StripedStateMatrix implements StateMatrix
+{
+    
+    public static final int DEFAULT_STRIPES = 1024;
+
+    
+    private final StateMatrix matrix;
+
+    
+    private final Object[] locks;
+
+    
+    private final int shift;
+
+    
+    public StripedStateMatrix(StateMatrix matrix)
+    {
+        this(matrix, DEFAULT_STRIPES);
+    }
+
+    
+    public StripedStateMatrix(StateMatrix matrix, int stripes)
+    {
+        if (stripes < 2 || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException(String.format(
+                        "Number of stripes must be a power of two >= 2, " +
+                        "got %d.", stripes));
+
+        this.matrix = matrix;
+        this.locks = new Object[stripes];
+        this.shift = 64 - Integer.numberOfTrailingZeros(stripes);
+
+        for (int i = 0; i < stripes; ++i)
+            locks[i] = new Object();
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return matrix.getQ(state, action);
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        synchronized (lock(state)) {
+            matrix.setQ(state, action, value);
+        }
+    }
+
+    @Override
+    public float updateQ(long state, int action, float target,
+            float learningRate)
+    {
+        // Holding the row's stripe makes the read-modify-write atomic with
+        // respect to every other update of the same row.
+        synchronized (lock(state)) {
+            return matrix.updateQ(state, action, target, learningRate);
+        }
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        synchronized (lock(state)) {
+            return matrix.compareAndSetQ(state, action, expected, value);
+        }
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        matrix.getRow(state, row);
+    }
+
+    @Override
+    public int getBestAction(long state, long[] mask)
+    {
+        return matrix.getBestAction(state, mask);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        return matrix.getMaxValue(state);
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return matrix.getNumActions();
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return matrix.getNumStates();
+    }
+
+    @Override
+    public long getNumVisitedStates()
+    {
+        return matrix.getNumVisitedStates();
+    }
+
+    public void shutdown()
+    {
+        matrix.shutdown();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        matrix.close();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        matrix.flush();
+    }
+
+    
+    private Object lock(long state)
+    {
+        return locks[(int) ((state * 0x9e3779b97f4a7c15L) >>> shift)];
+    }
+}
@@ -0,0 +1,472 @@
+package dots.engine;
+
+import dots.agent.q.StateMatrix;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+
+public class BatchSimulator
+{
+    
+    public enum Policy
+    {
+        RANDOM,
+
+        // Takes a box when one is on offer, otherwise avoids handing one
+        // over while it can.
+        GREEDY,
+
+        // The best free line of a Q-table, as a greedy QLearningAgent plays.
+        TABLE
+    }
+
+    
+    // Lane-wise bit operations over the line bitmasks of a whole batch. Box
+    // b is identified by the bit of its top line, its bottom, left and right
+    // lines are that bit shifted up by 2 * width - 1, width - 1 and width.
+    public interface Kernel
+    {
+        // boxes[i] = the completed boxes of lines[i], for i in [0, n).
+        public void completedBoxes(long[] lines, long[] boxes, int n);
+
+        // captures[i] = the free lines of lines[i] that complete a box,
+        // safe[i] = those that neither complete one nor leave one with three
+        // sides.
+        public void classifyLines(long[] lines, long[] captures, long[] safe,
+                int n);
+    }
+
+    
+    public static class Result
+    {
+        public long games;
+
+        public long moves;
+
+        // Rounds won by the first and second policy, ties are not counted.
+        public final long[] wins = new long[2];
+
+        public long ties;
+
+        public long nanos;
+
+        void add(Result other)
+        {
+            games += other.games;
+            moves += other.moves;
+            wins[0] += other.wins[0];
+            wins[1] += other.wins[1];
+            ties += other.ties;
+            nanos = Math.max(nanos, other.nanos);
+        }
+
+        public double getMovesPerSecond()
+        {
+            return nanos > 0 ? moves / (nanos / 1e9) : 0;
+        }
+    }
+
+    
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    
+    private final long full;
+
+    
+    private final int batchSize;
+
+    
+    private final Policy[] policies;
+
+    
+    private final StateMatrix matrix;
+
+    
+    private final Symmetry symmetry;
+
+    
+    private final Kernel kernel;
+
+    
+    // The games of the batch, one slot per game in every array.
+    private final long[] lines;
+
+    
+    private final long[] boxes;
+
+    
+    private final long[] nextBoxes;
+
+    
+    private final long[] captures;
+
+    
+    private final long[] safe;
+
+    
+    // Boxes of the first policy minus those of the second.
+    private final int[] margins;
+
+    
+    // 0 while the first policy is to move, 1 for the second.
+    private final byte[] toMove;
+
+    
+    private final long[] mask;
+
+    
+    private long random;
+
+    
+    // matrix and symmetry are only used by the TABLE policy and may be null
+    // otherwise.
+    public BatchSimulator(int width, int height, Policy first, Policy second,
+            StateMatrix matrix, Symmetry symmetry, int batchSize,
+            Kernel kernel, long seed)
+    {
+        Grid grid = new Grid(width, height);
+        int numLines = grid.getSize();
+
+        if (numLines > 63)
+            throw new IllegalArgumentException(String.format(
+                        "A board with %d lines is too large for the batch " +
+                        "simulator, at most 63 are supported.", numLines));
+        if ((first == Policy.TABLE || second == Policy.TABLE)
+                && (matrix == null || matrix.getNumStates() < 1L << numLines))
+            throw new IllegalArgumentException("The table policy needs a " +
+                    "Q-table with a row for every state.");
+        if (batchSize <= 0)
+            throw new IllegalArgumentException(String.format(
+                        "Expected a positive batch size, got %d.", batchSize));
+
+        this.full = grid.getMaxIdentifier();
+        this.policies = new Policy[] {first, second};
+        this.matrix = matrix;
+        this.symmetry = symmetry;
+        this.batchSize = batchSize;
+        this.kernel = kernel;
+        // xorshift never leaves a zero state.
+        this.random = seed != 0 ? seed : 1;
+
+        lines = new long[batchSize];
+        boxes = new long[batchSize];
+        nextBoxes = new long[batchSize];
+        captures = new long[batchSize];
+        safe = new long[batchSize];
+        margins = new int[batchSize];
+        toMove = new byte[batchSize];
+        mask = new long[1];
+    }
+
+    
+    // The Vector API kernel when it was built by the vcompile target and
+    // the jdk.incubator.vector module is present, the scalar one otherwise.
+    public static Kernel createKernel(int width, int height, boolean vector)
+    {
+        if (vector) {
+            try {
+                return (Kernel) Class.forName("dots.engine.VectorKernel")
+                    .getConstructor(int.class, int.class)
+                    .newInstance(width, height);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                Logger.getLogger(BatchSimulator.class.getPackage().getName())
+                    .fine("Vector kernel unavailable: " + e);
+            }
+        }
+
+        return new ScalarKernel(width, height);
+    }
+
+    
+    // Plays numGames rounds, keeping the batch full by starting a new round
+    // in every slot whose round ended. Every step moves once in each game.
+    public Result run(long numGames)
+    {
+        Result result = new Result();
+        long started = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < batchSize && started < numGames; ++i, ++started)
+            reset(i);
+
+        int active = (int) started;
+
+        while (active > 0) {
+            if (policies[0] == Policy.GREEDY || policies[1] == Policy.GREEDY)
+                kernel.classifyLines(lines, captures, safe, active);
+
+            for (int i = 0; i < active; ++i)
+                lines[i] |= 1L << choose(i);
+
+            kernel.completedBoxes(lines, nextBoxes, active);
+
+            for (int i = 0; i < active; ++i) {
+                int completed = Long.bitCount(nextBoxes[i])
+                    - Long.bitCount(boxes[i]);
+
+                // Branch free, the player to move is as good as random.
+                boxes[i] = nextBoxes[i];
+                margins[i] += completed - 2 * completed * toMove[i];
+
+                // Completing a box keeps the turn.
+                toMove[i] ^= (completed - 1) >>> 31;
+            }
+
+            result.moves += active;
+
+            for (int i = 0; i < active; ++i) {
+                if (lines[i] != full)
+                    continue;
+
+                finish(i, result);
+
+                if (started < numGames) {
+                    reset(i);
+                    ++started;
+                } else {
+                    // The last slot takes the place of the finished one, so
+                    // the live games stay packed at the front.
+                    move(--active, i);
+                    --i;
+                }
+            }
+        }
+
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    
+    // Runs one simulator per thread and adds up their results.
+    public static Result run(final int width, final int height,
+            final Policy first, final Policy second, final StateMatrix matrix,
+            final Symmetry symmetry, final int batchSize, final boolean vector,
+            int threads, long numGames, long seed)
+        throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        Result result = new Result();
+
+        try {
+            for (int t = 0; t < threads; ++t) {
+                final long share = numGames / threads
+                    + (t < numGames % threads ? 1 : 0);
+                final long threadSeed = seed + t * 0x9e3779b97f4a7c15L;
+
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call()
+                    {
+                        return new BatchSimulator(width, height, first,
+                                second, matrix, symmetry, batchSize,
+                                createKernel(width, height, vector),
+                                threadSeed).run(share);
+                    }
+                }));
+            }
+
+            for (Future<Result> future : futures)
+                result.add(future.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    
+    private void reset(int i)
+    {
+        lines[i] = 0;
+        boxes[i] = 0;
+        margins[i] = 0;
+        toMove[i] = (byte) (nextRandom() & 1);
+    }
+
+    
+    private void finish(int i, Result result)
+    {
+        ++result.games;
+
+        if (margins[i] > 0)
+            ++result.wins[0];
+        else if (margins[i] < 0)
+            ++result.wins[1];
+        else
+            ++result.ties;
+    }
+
+    
+    private void move(int from, int to)
+    {
+        lines[to] = lines[from];
+        boxes[to] = boxes[from];
+        margins[to] = margins[from];
+        toMove[to] = toMove[from];
+    }
+
+    
+    private int choose(int i)
+    {
+        long free = ~lines[i] & full;
+
+        switch (policies[toMove[i]]) {
+        case GREEDY:
+            if (captures[i] != 0)
+                return select(captures[i]);
+            if (safe[i] != 0)
+                return select(safe[i]);
+            return select(free);
+        case TABLE:
+            return bestAction(lines[i], free);
+        default:
+            return select(free);
+        }
+    }
+
+    
+    // A uniformly random set bit of candidates, found by halving instead of
+    // walking the bits one by one. The halves are picked with masks rather
+    // than branches, which would be mispredicted half of the time.
+    private int select(long candidates)
+    {
+        int k = (int) (((nextRandom() >>> 32) * Long.bitCount(candidates))
+                >>> 32);
+        int position = 0;
+
+        for (int width = 32; width > 0; width >>= 1) {
+            long low = candidates & ((1L << width) - 1);
+            int count = Long.bitCount(low);
+            int high = (count - k - 1) >> 31;
+
+            k -= count & high;
+            candidates = (candidates >>> width) & high | low & ~(long) high;
+            position += width & high;
+        }
+
+        return position;
+    }
+
+    
+    private int bestAction(long state, long free)
+    {
+        int transform = 0;
+
+        if (symmetry != null) {
+            transform = symmetry.getCanonicalTransform(state);
+            state = symmetry.transform(transform, state);
+            free = ~state & full;
+        }
+
+        mask[0] = free;
+        int action = matrix.getBestAction(state, mask);
+
+        return symmetry != null
+            ? symmetry.inverseAction(transform, action) : action;
+    }
+
+    
+    // xorshift64*, one generator for the whole batch as the games are
+    // stepped in a fixed order.
+    private long nextRandom()
+    {
+        random ^= random >>> 12;
+        random ^= random << 25;
+        random ^= random >>> 27;
+        return random * 0x2545f4914f6cdd1dL;
+    }
+
+    
+    static class ScalarKernel implements Kernel
+    {
+        private final int down;
+
+        private final int left;
+
+        private final int right;
+
+        // The top lines of all boxes.
+        private final long tops;
+
+        private final long full;
+
+        ScalarKernel(int width, int height)
+        {
+            down = 2 * width - 1;
+            left = width - 1;
+            right = width;
+
+            long tops = 0;
+            for (int row = 0; row < height - 1; ++row) {
+                for (int column = 0; column < width - 1; ++column)
+                    tops |= 1L << (row * down + column);
+            }
+            this.tops = tops;
+            this.full = new Grid(width, height).getMaxIdentifier();
+        }
+
+        @Override
+        public void completedBoxes(long[] lines, long[] boxes, int n)
+        {
+            completedBoxes(lines, boxes, 0, n);
+        }
+
+        @Override
+        public void classifyLines(long[] lines, long[] captures, long[] safe,
+                int n)
+        {
+            classifyLines(lines, captures, safe, 0, n);
+        }
+
+        void completedBoxes(long[] lines, long[] boxes, int from, int to)
+        {
+            for (int i = from; i < to; ++i) {
+                long l = lines[i];
+                boxes[i] = l & (l >>> down) & (l >>> left) & (l >>> right)
+                    & tops;
+            }
+        }
+
+        void classifyLines(long[] lines, long[] captures, long[] safe,
+                int from, int to)
+        {
+            for (int i = from; i < to; ++i) {
+                long l = lines[i];
+                long t = l;
+                long b = l >>> down;
+                long w = l >>> left;
+                long e = l >>> right;
+
+                // Sides of every box added up bit-sliced, ones and twos are
+                // the low bits of the count, fours is set for four sides.
+                long s1 = t ^ b;
+                long c1 = t & b;
+                long s2 = w ^ e;
+                long c2 = w & e;
+                long ones = s1 ^ s2;
+                long carry = s1 & s2;
+                long twos = c1 ^ c2 ^ carry;
+                long fours = (c1 & c2) | ((c1 ^ c2) & carry);
+
+                long three = ones & twos & tops;
+                long two = ~ones & twos & ~fours & tops;
+
+                // The missing side of a box with three, and both missing
+                // sides of one with two, moved from the box bit to the line.
+                captures[i] = (three & ~t) | (three & ~b) << down
+                    | (three & ~w) << left | (three & ~e) << right;
+                long unsafe = (two & ~t) | (two & ~b) << down
+                    | (two & ~w) << left | (two & ~e) << right;
+
+                safe[i] = ~l & ~captures[i] & ~unsafe & full;
+            }
+        }
+    }
+}
@@ -2,7 +2,9 @@ package dots.engine;
 
 import dots.agent.*;
 import dots.engine.*;
+import dots.util.Metrics;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -13,6 +15,15 @@ public class DotsNBoxes extends Thread {
         public void change() {
             setChanged();
         }
+
+        public void publish(Object arg) {
+            // Skip the notification entirely when nobody listens, it copies
+            // the observer list on every call.
+            if (countObservers() > 0) {
+                setChanged();
+                notifyObservers(arg);
+            }
+        }
     }
     
     List<Agent> agents;
@@ -31,6 +42,10 @@ public class DotsNBoxes extends Thread {
     
     Obs obs;
     
+    int[] previousNumBoxes;
+    
+    int roundsPlayed;
+    
     private static int turnReward(int numBoxes)
     {
         return 0;
@@ -63,6 +78,7 @@ public class DotsNBoxes extends Thread {
         scoring.addAgent(agent2);
 
         obs = new Obs();
+        previousNumBoxes = new int[agents.size()];
 
         agent1.observe(obs);
         agent2.observe(obs);
@@ -78,14 +94,18 @@ public class DotsNBoxes extends Thread {
     }
 
     
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    
     public void playRound() throws InterruptedException {
         Agent previous = null;
         int numPoints = 0;
         int startIndex = random.nextInt(agents.size());
         int index = startIndex;
-        Set<Integer> available = null;
-
-        int[] previousNumBoxes = new int[agents.size()];
+        int numMoves = 0;
+        ActionSet available = null;
 
         for (int i = 0; i < previousNumBoxes.length; ++i)
             previousNumBoxes[i] = -1;
@@ -109,20 +129,7 @@ public class DotsNBoxes extends Thread {
 
             action = current.getAction(state, available);
             int not_to_choose = action;
-            if(current.toExplore())
-            {                
-                int size = available.size();
-                int item = new Random().nextInt(size);
-                int i = 0;
-                for(Integer possible_action : available)
-                {
-                    if (i == item && possible_action != not_to_choose){
-                        action = possible_action;
-                        break;
-                    }
-                    i++;
-                }
-            }
+            action = explore(current, available, action, not_to_choose);
 
             while (!available.contains(action)) {
                 if (action == -1)
@@ -130,24 +137,12 @@ public class DotsNBoxes extends Thread {
 
                 current.giveFeedback(FAIL_REWARD, state, available);
                 action = current.getAction(state, available);
-                if(current.toExplore())
-                {                
-                    int size = available.size();
-                    int item = new Random().nextInt(size);
-                    int i = 0;
-                    for(Integer possible_action : available)
-                    {
-                        if (i == item && possible_action != not_to_choose){
-                            action = possible_action;
-                            break;
-                        }
-                        i++;
-                    }
-                }
+                action = explore(current, available, action, not_to_choose);
             }
 
             numBoxes = grid.setLine(action);
             numPoints += numBoxes;
+            ++numMoves;
 
             previousNumBoxes[index] = numBoxes;
 
@@ -159,12 +154,13 @@ public class DotsNBoxes extends Thread {
                 numPoints = 0;
             }
 
-            obs.change();
-            obs.notifyObservers(grid);
-            obs.change();
-            obs.notifyObservers(scoring);
+            obs.publish(grid);
+            obs.publish(scoring);
         }
 
+        ++roundsPlayed;
+        Metrics.roundPlayed(numMoves);
+
         List<Agent> winners = scoring.getWinners();
 
         if (winners.size() == 1) {
@@ -176,10 +172,11 @@ public class DotsNBoxes extends Thread {
                     agent.giveFeedback(endReward(true),
                             grid.getIdentifier(), null);
                     scoring.increment(agent);
-                    logger.fine(String.format(
-                            "Agent %s won the round. Boxes: %d", agent
-                                    .getClass().getSimpleName(), scoring
-                                    .getNumBoxes(agent)));
+                    if (logger.isLoggable(Level.FINE))
+                        logger.fine(String.format(
+                                "Agent %s won the round. Boxes: %d", agent
+                                        .getClass().getSimpleName(), scoring
+                                        .getNumBoxes(agent)));
                 } else {
                     agent.giveFeedback(endReward(false),
                             grid.getIdentifier(), null);
@@ -203,6 +200,17 @@ public class DotsNBoxes extends Thread {
     }
 
     
+    private int explore(Agent current, ActionSet available, int action,
+            int notToChoose) {
+        if (current.toExplore()) {
+            int possibleAction = available.get(random.nextInt(available.size()));
+            if (possibleAction != notToChoose)
+                action = possibleAction;
+        }
+        return action;
+    }
+
+    
     @Override
     public void run() {
         int i = 0;
@@ -1,7 +1,7 @@
 package dots.engine;
 
-import java.util.HashSet;
-import java.util.Set;
+import dots.agent.ActionSet;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -20,13 +20,34 @@ public class Grid
     private int width;
 
     
-    private boolean[] lines;
+    private final int numLines;
+
+    
+    private long lines;
+
+    
+    private final long full;
+
+    
+    private final long[] firstBox;
+
+    
+    private final long[] secondBox;
+
+    
+    private final StateKey key;
+
+    
+    private long hash;
+
+    
+    private final int[][] boxLines;
 
     
     private Logger logger;
 
     
-    private Set<Integer> available;
+    private ActionSet available;
 
     
     public Grid()
@@ -40,103 +61,287 @@ public class Grid
         this.width = width;
         this.height = height;
 
-        int numLines = height * (width - 1) + width * (this.height - 1);
-        lines = new boolean[numLines];
+        numLines = height * (width - 1) + width * (this.height - 1);
+
+        // Boards up to 64 lines keep the drawn lines as one long, which is
+        // also the exact identifier. Wider boards keep them in a StateKey
+        // and are identified by its incrementally updated Zobrist hash.
+        boolean wide = numLines > 64;
+
+        full = wide || numLines == 64 ? -1L : (1L << numLines) - 1;
+        firstBox = new long[wide ? 0 : numLines];
+        secondBox = new long[wide ? 0 : numLines];
+        boxLines = new int[wide ? numLines : 0][];
+        key = wide ? new StateKey(numLines) : null;
+
+        // For every line, the other three lines of the (at most two) boxes
+        // it borders. A box is completed when all are drawn.
+        for (int line = 0; line < numLines; ++line) {
+            int[] box = new int[] {-1, -1, -1, -1, -1, -1};
+
+            if (isHorizontal(line)) {
+                if (line >= width)
+                    setBox(box, 0, line - (2 * width - 1),
+                            line - width, line - width + 1);
+
+                if (line < numLines - width)
+                    setBox(box, 3, line + width - 1,
+                            line + width, line + (2 * width - 1));
+            } else {
+                if ((line % (2 * width - 1)) - (width - 1) != (width - 1))
+                    setBox(box, 0, line + 1,
+                            line - width + 1, line + width);
+
+                if ((line % (2 * width - 1)) - (width - 1) != 0)
+                    setBox(box, 3, line - 1,
+                            line - width, line + width - 1);
+            }
+
+            if (wide) {
+                boxLines[line] = box;
+            } else {
+                firstBox[line] = mask(box, 0);
+                secondBox[line] = mask(box, 3);
+            }
+        }
 
         logger = Logger.getLogger(getClass().getPackage().getName());
-        available = new HashSet<Integer>();
+        available = new ActionSet(numLines);
+        reset();
     }
 
     
     public long getIdentifier()
     {
-        int sum = 0;
-
-        for (int i = 0; i < lines.length; ++i)
-            if (lines[i])
-                sum += 1 << i;
-
-        return sum;
+        return key == null ? lines : hash;
     }
 
     
     public static long getIdentifier(long state, int action)
     {
-        if (((state >> action) & 1 )== 1)
-            return state;
-        return state + (1 << action);
+        return state | (1L << action);
     }
 
     
-    public boolean isFinished()
+    public StateKey getKey()
     {
-        for (int i = 0; i < lines.length; ++i)
-            if (!lines[i])
-                return false;
-        return true;
+        if (key != null)
+            return key;
+
+        StateKey narrow = new StateKey(numLines);
+        narrow.setWord(0, lines);
+        return narrow;
     }
 
     
-    public Set<Integer> getAvailableLines()
+    public boolean isWide()
     {
-        available.clear();
+        return key != null;
+    }
 
-        for (int i = 0; i < lines.length; ++i)
-            if (!lines[i])
-                available.add(i);
+    
+    public boolean isFinished()
+    {
+        return available.isEmpty();
+    }
 
+    
+    public ActionSet getAvailableLines()
+    {
         return available;
     }
 
     
     public int setLine(int line)
     {
-        if (line < 0 || line >= lines.length) {
+        if (line < 0 || line >= numLines) {
             logger.severe(String.format("Invalid line number %d supplied. " +
                         "Valid interval is [%d, %d].", line, 0,
-                        lines.length - 1));
+                        numLines - 1));
             return -1;
         }
 
-        lines[line] = true;
-        int sum = 0;
+        int sum;
 
-        if (isHorizontal(line)) {
-            if (line >= width
-                    && lines[line - (2 * width - 1)]
-                    && lines[line - width]
-                    && lines[line - width + 1])
-                ++sum;
+        if (key == null) {
+            lines |= 1L << line;
+
+            long box = firstBox[line];
+            sum = box != 0 && (lines & box) == box ? 1 : 0;
 
-            if (line < lines.length - width
-                    && lines[line + width - 1]
-                    && lines[line + width]
-                    && lines[line + (2 * width - 1)])
+            box = secondBox[line];
+            if (box != 0 && (lines & box) == box)
                 ++sum;
         } else {
-            if ((line % (2 * width - 1)) - (width - 1) != (width - 1)
-                    && lines[line + 1]
-                    && lines[line - width + 1]
-                    && lines[line + width])
-                ++sum;
+            if (!key.get(line)) {
+                key.set(line);
+                hash ^= StateKey.zobrist(line);
+            }
 
-            if ((line % (2 * width - 1)) - (width - 1) != 0
-                    && lines[line - 1]
-                    && lines[line - width]
-                    && lines[line + width - 1])
+            int[] box = boxLines[line];
+            sum = box[0] != -1 && key.get(box[0]) && key.get(box[1])
+                && key.get(box[2]) ? 1 : 0;
+
+            if (box[3] != -1 && key.get(box[3]) && key.get(box[4])
+                    && key.get(box[5]))
                 ++sum;
+        }
+
+        available.remove(line);
 
+        if (logger.isLoggable(Level.FINEST)) {
+            String message = String.format("Line %02d is %s and gives %d point. " +
+                    "State is now %d.",
+                    line,
+                    (isHorizontal(line) ? "Horizontal" : "Vertical"),
+                    sum,
+                    getIdentifier()
+            );
+
+            logger.finest(message);
         }
 
-        String message = String.format("Line %02d is %s and gives %d point. " +
-                "State is now %d.",
-                line,
-                (isHorizontal(line) ? "Horizontal" : "Vertical"),
-                sum,
-                getIdentifier()
-        );
+        return sum;
+    }
 
-        logger.finest(message);
+    
+    // Takes back a line drawn with setLine, so a search can walk the game
+    // tree on a single grid.
+    public void unsetLine(int line)
+    {
+        if (key == null) {
+            lines &= ~(1L << line);
+        } else if (key.get(line)) {
+            key.clear(line);
+            hash ^= StateKey.zobrist(line);
+        }
+
+        available.add(line);
+    }
+
+    
+    // Copies the lines of a grid of the same size, without allocating.
+    public void copyFrom(Grid other)
+    {
+        lines = other.lines;
+        hash = other.hash;
+
+        if (key != null)
+            key.copyFrom(other.key);
+
+        available.copyFrom(other.available);
+    }
+
+    
+    // For boards up to 64 lines, where the identifier is the line bitmask.
+    public void setState(long state)
+    {
+        lines = state & full;
+        available.fill();
+
+        for (long drawn = lines; drawn != 0; drawn &= drawn - 1)
+            available.remove(Long.numberOfTrailingZeros(drawn));
+    }
+
+    
+    public void setState(StateKey state)
+    {
+        if (key == null) {
+            setState(state.getWord(0));
+            return;
+        }
+
+        key.copyFrom(state);
+        hash = key.hash64();
+        available.fill();
+
+        for (int line = 0; line < numLines; ++line) {
+            if (key.get(line))
+                available.remove(line);
+        }
+    }
+
+    
+    // The most sides already drawn of a box next to line: 3 means drawing
+    // it completes a box, 2 that it hands one to the opponent.
+    public int getMaxBoxSides(int line)
+    {
+        if (key == null) {
+            int first = firstBox[line] != 0
+                ? Long.bitCount(lines & firstBox[line]) : 0;
+            int second = secondBox[line] != 0
+                ? Long.bitCount(lines & secondBox[line]) : 0;
+            return Math.max(first, second);
+        }
+
+        int[] box = boxLines[line];
+        int max = 0;
+
+        for (int offset = 0; offset < box.length; offset += 3) {
+            if (box[offset] == -1)
+                continue;
+
+            int sides = 0;
+            for (int i = offset; i < offset + 3; ++i) {
+                if (key.get(box[i]))
+                    ++sides;
+            }
+            max = Math.max(max, sides);
+        }
+
+        return max;
+    }
+
+    
+    public int getNumBoxes()
+    {
+        int sides = 0;
+
+        // Every completed box is counted once from each of its four lines.
+        for (int line = 0; line < numLines; ++line) {
+            if (key == null) {
+                if ((lines & (1L << line)) == 0)
+                    continue;
+
+                long box = firstBox[line];
+                if (box != 0 && (lines & box) == box)
+                    ++sides;
+
+                box = secondBox[line];
+                if (box != 0 && (lines & box) == box)
+                    ++sides;
+            } else {
+                if (!key.get(line))
+                    continue;
+
+                int[] box = boxLines[line];
+                for (int offset = 0; offset < box.length; offset += 3) {
+                    if (box[offset] != -1 && key.get(box[offset])
+                            && key.get(box[offset + 1])
+                            && key.get(box[offset + 2]))
+                        ++sides;
+                }
+            }
+        }
+
+        return sides / 4;
+    }
+
+    
+    // The boxes drawing line would complete in state, without changing the
+    // grid. Only for boards that keep their lines in one long.
+    public int getNumCompleted(long state, int line)
+    {
+        long lines = state | (1L << line);
+        int sum = 0;
+
+        long box = firstBox[line];
+        if (box != 0 && (lines & box) == box)
+            ++sum;
+
+        box = secondBox[line];
+        if (box != 0 && (lines & box) == box)
+            ++sum;
 
         return sum;
     }
@@ -148,16 +353,38 @@ public class Grid
     }
 
     
+    private static void setBox(int[] box, int offset, int a, int b, int c)
+    {
+        box[offset] = a;
+        box[offset + 1] = b;
+        box[offset + 2] = c;
+    }
+
+    
+    private static long mask(int[] box, int offset)
+    {
+        if (box[offset] == -1)
+            return 0;
+        return (1L << box[offset]) | (1L << box[offset + 1])
+            | (1L << box[offset + 2]);
+    }
+
+    
     public void reset()
     {
-        for (int i = 0; i < lines.length; ++i)
-            lines[i] = false;
+        lines = 0;
+        hash = 0;
+
+        if (key != null)
+            key.clear();
+
+        available.fill();
     }
 
     
     public int getSize()
     {
-        return lines.length;
+        return numLines;
     }
 
     
@@ -175,10 +402,14 @@ public class Grid
     
     public long getMaxIdentifier()
     {
-        int sum = 0;
-        for (int i = 0; i < lines.length; ++i)
-            sum += 1 << i;
+        return full;
+    }
 
-        return sum;
+    
+    public long getNumStates()
+    {
+        // The number of distinct identifiers, saturated once it no longer
+        // fits a long (64 line and wide boards).
+        return numLines < 63 ? 1L << numLines : Long.MAX_VALUE;
     }
 }
@@ -0,0 +1,362 @@
+package dots.engine;
+
+import dots.agent.Agent;
+import dots.agent.q.StateMatrix;
+import dots.util.Metrics;
+import dots.util.ShutdownHook;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+public class MetricsReporter implements MetricsReporterMBean, ShutdownHook
+{
+    
+    public static final String OBJECT_NAME = "dots:type=Metrics";
+
+    
+    private static final class Sample
+    {
+        long time;
+
+        long rounds;
+
+        long moves;
+
+        long qUpdates;
+
+        double sumAbsTdError;
+
+        double roundsPerSecond;
+
+        double movesPerSecond;
+
+        double qUpdatesPerSecond;
+
+        double meanAbsTdError;
+    }
+
+    
+    private final List<DotsNBoxes> games = new CopyOnWriteArrayList<DotsNBoxes>();
+
+    
+    private final List<StateMatrix> matrices =
+        new CopyOnWriteArrayList<StateMatrix>();
+
+    
+    private final ScheduledExecutorService scheduler;
+
+    
+    private final Writer writer;
+
+    
+    private volatile Sample last;
+
+    
+    private Logger logger;
+
+    
+    // Samples every intervalMillis, rates are over the last interval. With a
+    // filename every sample is also appended to it as a JSON line.
+    public MetricsReporter(long intervalMillis, String filename)
+        throws IOException
+    {
+        logger = Logger.getLogger(getClass().getPackage().getName());
+        writer = filename != null
+            ? new BufferedWriter(new FileWriter(filename)) : null;
+        last = new Sample();
+        last.time = System.nanoTime();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "metrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run()
+            {
+                sample();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    
+    public void register()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            logger.warning(String.format("Could not register '%s': %s",
+                        OBJECT_NAME, e.getMessage()));
+        }
+    }
+
+    
+    public void addGame(DotsNBoxes game)
+    {
+        games.add(game);
+    }
+
+    
+    public void addMatrix(StateMatrix matrix)
+    {
+        matrices.add(matrix);
+    }
+
+    @Override
+    public long getRounds()
+    {
+        return Metrics.getRounds();
+    }
+
+    @Override
+    public double getRoundsPerSecond()
+    {
+        return last.roundsPerSecond;
+    }
+
+    @Override
+    public long getMoves()
+    {
+        return Metrics.getMoves();
+    }
+
+    @Override
+    public double getMovesPerSecond()
+    {
+        return last.movesPerSecond;
+    }
+
+    @Override
+    public long getQUpdates()
+    {
+        return Metrics.getQUpdates();
+    }
+
+    @Override
+    public double getQUpdatesPerSecond()
+    {
+        return last.qUpdatesPerSecond;
+    }
+
+    @Override
+    public double getMeanAbsTdError()
+    {
+        return last.meanAbsTdError;
+    }
+
+    @Override
+    public long getVisitedStates()
+    {
+        long visited = 0;
+
+        for (StateMatrix matrix : matrices) {
+            long n = matrix.getNumVisitedStates();
+            if (n < 0)
+                return -1;
+            visited += n;
+        }
+
+        return visited;
+    }
+
+    @Override
+    public double getOccupancy()
+    {
+        long visited = getVisitedStates();
+        double states = 0;
+
+        for (StateMatrix matrix : matrices)
+            states += matrix.getNumStates();
+
+        return visited < 0 || states == 0 ? -1 : visited / states;
+    }
+
+    @Override
+    public String[] getAgents()
+    {
+        int size = 0;
+        for (DotsNBoxes game : games)
+            size += game.agents.size();
+
+        String[] names = new String[size];
+        int i = 0;
+
+        for (int g = 0; g < games.size(); ++g) {
+            for (Agent agent : games.get(g).agents)
+                names[i++] = String.format("%d.%s", g + 1,
+                        agent.getClass().getSimpleName());
+        }
+
+        return names;
+    }
+
+    @Override
+    public double[] getWinShares()
+    {
+        int size = 0;
+        for (DotsNBoxes game : games)
+            size += game.agents.size();
+
+        double[] shares = new double[size];
+        int i = 0;
+
+        // Scoring is read without the game's cooperation, a share can lag
+        // by the round being played.
+        for (DotsNBoxes game : games) {
+            int rounds = game.roundsPlayed;
+
+            for (Agent agent : game.agents)
+                shares[i++] = rounds > 0
+                    ? (double) game.scoring.getScore(agent) / rounds : 0;
+        }
+
+        return shares;
+    }
+
+    @Override
+    public long getCheckpoints()
+    {
+        return Metrics.getCheckpoints();
+    }
+
+    @Override
+    public double getLastCheckpointMillis()
+    {
+        return Metrics.getLastCheckpointNanos() / 1e6;
+    }
+
+    @Override
+    public double getMeanCheckpointMillis()
+    {
+        long checkpoints = Metrics.getCheckpoints();
+        return checkpoints > 0
+            ? Metrics.getCheckpointNanos() / 1e6 / checkpoints : 0;
+    }
+
+    @Override
+    public long getHeapUsed()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+            .getUsed();
+    }
+
+    @Override
+    public long getOffHeapUsed()
+    {
+        // Direct and mapped buffers, memory the native backend allocates
+        // itself is not visible to the JVM.
+        long used = 0;
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+                    BufferPoolMXBean.class))
+            used += pool.getMemoryUsed();
+
+        return used;
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdown();
+
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            // The last sample is taken regardless.
+        }
+
+        sample();
+
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+            logger.warning("Could not close the stats stream: "
+                    + e.getMessage());
+        }
+    }
+
+    
+    synchronized void sample()
+    {
+        Sample previous = last;
+        Sample sample = new Sample();
+
+        sample.time = System.nanoTime();
+        sample.rounds = Metrics.getRounds();
+        sample.moves = Metrics.getMoves();
+        sample.qUpdates = Metrics.getQUpdates();
+        sample.sumAbsTdError = Metrics.getSumAbsTdError();
+
+        double seconds = (sample.time - previous.time) / 1e9;
+        long updates = sample.qUpdates - previous.qUpdates;
+
+        if (seconds > 0) {
+            sample.roundsPerSecond = (sample.rounds - previous.rounds) / seconds;
+            sample.movesPerSecond = (sample.moves - previous.moves) / seconds;
+            sample.qUpdatesPerSecond = updates / seconds;
+        }
+        sample.meanAbsTdError = updates > 0
+            ? (sample.sumAbsTdError - previous.sumAbsTdError) / updates : 0;
+
+        last = sample;
+
+        if (writer != null)
+            write(sample);
+    }
+
+    
+    private void write(Sample sample)
+    {
+        StringBuilder line = new StringBuilder();
+        String[] agents = getAgents();
+        double[] shares = getWinShares();
+
+        line.append(String.format(Locale.ROOT, "{\"time\":%d,\"rounds\":%d," +
+                    "\"rounds_per_sec\":%.1f,\"moves\":%d," +
+                    "\"moves_per_sec\":%.1f,\"q_updates\":%d," +
+                    "\"q_updates_per_sec\":%.1f,\"mean_abs_td_error\":%.6f," +
+                    "\"visited_states\":%d,\"occupancy\":%.6f," +
+                    "\"checkpoints\":%d,\"last_checkpoint_ms\":%.3f," +
+                    "\"heap_used\":%d,\"off_heap_used\":%d,\"win_share\":{",
+                    System.currentTimeMillis(), sample.rounds,
+                    sample.roundsPerSecond, sample.moves,
+                    sample.movesPerSecond, sample.qUpdates,
+                    sample.qUpdatesPerSecond, sample.meanAbsTdError,
+                    getVisitedStates(), getOccupancy(), getCheckpoints(),
+                    getLastCheckpointMillis(), getHeapUsed(),
+                    getOffHeapUsed()));
+
+        for (int i = 0; i < agents.length; ++i) {
+            line.append(String.format(Locale.ROOT, "%s\"%s\":%.6f",
+                        i > 0 ? "," : "", agents[i], shares[i]));
+        }
+
+        line.append("}}\n");
+
+        try {
+            writer.write(line.toString());
+            writer.flush();
+        } catch (IOException e) {
+            logger.warning("Could not write the stats stream: "
+                    + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dots.engine;
+
+
+public interface MetricsReporterMBean
+{
+    
+    public long getRounds();
+
+    
+    public double getRoundsPerSecond();
+
+    
+    public long getMoves();
+
+    
+    public double getMovesPerSecond();
+
+    
+    public long getQUpdates();
+
+    
+    public double getQUpdatesPerSecond();
+
+    
+    public double getMeanAbsTdError();
+
+    
+    public long getVisitedStates();
+
+    
+    public double getOccupancy();
+
+    
+    public String[] getAgents();
+
+    
+    public double[] getWinShares();
+
+    
+    public long getCheckpoints();
+
+    
+    public double getLastCheckpointMillis();
+
+    
+    public double getMeanCheckpointMillis();
+
+    
+    public long getHeapUsed();
+
+    
+    public long getOffHeapUsed();
+}
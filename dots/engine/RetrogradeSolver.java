@@ -0,0 +1,224 @@
+package dots.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+
+public class RetrogradeSolver
+{
+    
+    public static final int MAGIC = 0x444e4253;
+
+    
+    public static final int VERSION = 1;
+
+    
+    public static final int HEADER_SIZE = 64;
+
+    
+    // Values are kept one signed byte per state and a single mapping holds
+    // at most Integer.MAX_VALUE bytes.
+    public static final int MAX_LINES = 30;
+
+    
+    // States whose low LOW_BITS lines are enumerated by one task.
+    private static final int LOW_BITS = 16;
+
+    
+    // Prefixes handled by one task before it stops splitting.
+    private static final int PREFIXES_PER_TASK = 4;
+
+    
+    private final Grid grid;
+
+    
+    private final int numLines;
+
+    
+    private final int lowBits;
+
+    
+    private final int threads;
+
+    
+    private MappedByteBuffer values;
+
+    
+    private Logger logger;
+
+    
+    public RetrogradeSolver(int width, int height, int threads)
+    {
+        grid = new Grid(width, height);
+        numLines = grid.getSize();
+
+        if (numLines > MAX_LINES)
+            throw new IllegalArgumentException(String.format(
+                        "A board with %d lines is too large to solve, at " +
+                        "most %d are supported.", numLines, MAX_LINES));
+        if (threads <= 0)
+            throw new IllegalArgumentException(String.format(
+                        "Expected a positive number of threads, got %d.",
+                        threads));
+
+        this.lowBits = Math.min(numLines, LOW_BITS);
+        this.threads = threads;
+
+        logger = Logger.getLogger(getClass().getPackage().getName());
+    }
+
+    
+    // Writes the table to filename and returns the value of the empty board,
+    // the margin the player to move first wins by under perfect play.
+    //
+    // The value of a state is the best difference between the boxes the
+    // player to move still completes and those the opponent does. Drawing a
+    // line that completes boxes keeps the turn, otherwise it passes:
+    //   V(full) = 0
+    //   V(s) = max over free lines l of
+    //            c + V(s | l)   if l completes c > 0 boxes,
+    //            -V(s | l)      otherwise.
+    // Every successor has one more line drawn, so solving the layers from
+    // full to empty only ever reads values of the finished layer above.
+    public int solve(String filename) throws IOException
+    {
+        long numStates = 1L << numLines;
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int value;
+
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+            // Layout, all little endian:
+            //   0 magic, 4 version, 8 number of states (long),
+            //  16 number of lines, 20 width, 24 height, 28 reserved up to
+            //  HEADER_SIZE, then one signed byte per state.
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(numStates);
+            header.putInt(numLines);
+            header.putInt(grid.getWidth());
+            header.putInt(grid.getHeight());
+            header.rewind();
+
+            channel.truncate(0);
+            while (header.hasRemaining())
+                channel.write(header);
+
+            // The full board is the only state of the top layer and its
+            // value, 0, is what the file is extended with.
+            values = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE,
+                    numStates);
+
+            for (int layer = numLines - 1; layer >= 0; --layer) {
+                long start = System.nanoTime();
+
+                pool.invoke(new LayerTask(layer, 0, 1L << (numLines - lowBits)));
+
+                logger.fine(String.format("Solved layer %d in %.1fms.", layer,
+                            (System.nanoTime() - start) / 1e6));
+            }
+
+            values.force();
+            value = values.get(0);
+        } finally {
+            pool.shutdown();
+            values = null;
+            file.close();
+        }
+
+        // Only a finished table replaces an existing one.
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        return value;
+    }
+
+    
+    private class LayerTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int layer;
+
+        private final long from;
+
+        private final long to;
+
+        LayerTask(int layer, long from, long to)
+        {
+            this.layer = layer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > PREFIXES_PER_TASK) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new LayerTask(layer, from, middle),
+                        new LayerTask(layer, middle, to));
+                return;
+            }
+
+            long size = 1L << lowBits;
+
+            for (long prefix = from; prefix < to; ++prefix) {
+                int low = layer - Long.bitCount(prefix);
+                if (low < 0 || low > lowBits)
+                    continue;
+
+                // Walks the low parts with exactly low bits set in increasing
+                // order, so only states of this layer are visited.
+                long bits = (1L << low) - 1;
+                while (bits < size) {
+                    long state = (prefix << lowBits) | bits;
+                    values.put((int) state, (byte) solve(state));
+
+                    if (bits == 0)
+                        break;
+
+                    long lowest = bits & -bits;
+                    long ripple = bits + lowest;
+                    bits = (((ripple ^ bits) >>> 2) / lowest) | ripple;
+                }
+            }
+        }
+    }
+
+    
+    private int solve(long state)
+    {
+        long free = ~state & ((1L << numLines) - 1);
+        int best = Integer.MIN_VALUE;
+
+        for (; free != 0; free &= free - 1) {
+            int line = Long.numberOfTrailingZeros(free);
+            int next = values.get((int) (state | (1L << line)));
+            int completed = grid.getNumCompleted(state, line);
+            int value = completed > 0 ? completed + next : -next;
+
+            if (value > best)
+                best = value;
+        }
+
+        return best;
+    }
+}
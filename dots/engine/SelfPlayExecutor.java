@@ -0,0 +1,134 @@
+package dots.engine;
+
+import dots.agent.Agent;
+import dots.agent.q.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+public class SelfPlayExecutor
+{
+    
+    public enum UpdatePolicy
+    {
+        RACY, STRIPED, DELTA, ATOMIC
+    }
+
+    
+    public interface AgentFactory
+    {
+        public Agent create(StateMatrix matrix);
+    }
+
+    
+    private static final int BATCH_SIZE = 64;
+
+    
+    private final int width;
+
+    
+    private final int height;
+
+    
+    private final StateMatrix matrix;
+
+    
+    private final UpdatePolicy policy;
+
+    
+    private final AgentFactory factory;
+
+    
+    private Logger logger;
+
+    
+    public SelfPlayExecutor(int width, int height, StateMatrix matrix,
+            UpdatePolicy policy, AgentFactory factory)
+    {
+        this.width = width;
+        this.height = height;
+        this.matrix = matrix;
+        this.policy = policy;
+        this.factory = factory;
+
+        logger = Logger.getLogger(getClass().getPackage().getName());
+    }
+
+    
+    public double run(int numThreads, long rounds) throws InterruptedException
+    {
+        final AtomicLong remaining = new AtomicLong(rounds);
+        final StateMatrix shared = policy == UpdatePolicy.STRIPED
+            ? new StripedStateMatrix(matrix)
+            : policy == UpdatePolicy.ATOMIC ? new ConcurrentStateMatrix(matrix)
+            : matrix;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numThreads; ++i) {
+            final StateMatrix view = policy == UpdatePolicy.DELTA
+                ? new DeltaStateMatrix(matrix) : shared;
+
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException
+                {
+                    DotsNBoxes game = new DotsNBoxes(new Grid(width, height),
+                            factory.create(view), factory.create(view), 0);
+
+                    // Rounds are claimed in batches to keep the shared
+                    // counter off the per round path.
+                    for (long batch = claim(remaining); batch > 0;
+                            batch = claim(remaining)) {
+                        for (long j = 0; j < batch; ++j)
+                            game.playRound();
+                    }
+
+                    if (view instanceof DeltaStateMatrix)
+                        ((DeltaStateMatrix) view).merge();
+
+                    return null;
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new IllegalStateException(e.getCause());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        logger.fine(String.format("Played %d rounds on %d threads in %.2fs.",
+                    rounds, numThreads, seconds));
+
+        return rounds / seconds;
+    }
+
+    
+    // Up to BATCH_SIZE of the remaining rounds, the last batch is cut short
+    // so that exactly the requested number is played. 0 once all are taken.
+    private static long claim(AtomicLong remaining)
+    {
+        for (;;) {
+            long left = remaining.get();
+
+            if (left <= 0)
+                return 0;
+
+            long batch = Math.min(BATCH_SIZE, left);
+            if (remaining.compareAndSet(left, left - batch))
+                return batch;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dots.engine;
+
+import java.util.Arrays;
+
+
+public class StateKey
+{
+    
+    private final long[] words;
+
+    
+    public StateKey(int numLines)
+    {
+        words = new long[(numLines + 63) >>> 6];
+    }
+
+    
+    public StateKey(StateKey other)
+    {
+        words = other.words.clone();
+    }
+
+    
+    public boolean get(int line)
+    {
+        return (words[line >>> 6] & (1L << line)) != 0;
+    }
+
+    
+    public void set(int line)
+    {
+        words[line >>> 6] |= 1L << line;
+    }
+
+    
+    public void clear(int line)
+    {
+        words[line >>> 6] &= ~(1L << line);
+    }
+
+    
+    public void clear()
+    {
+        Arrays.fill(words, 0);
+    }
+
+    
+    public int getNumWords()
+    {
+        return words.length;
+    }
+
+    
+    public long getWord(int index)
+    {
+        return words[index];
+    }
+
+    
+    public void setWord(int index, long word)
+    {
+        words[index] = word;
+    }
+
+    
+    public void copyFrom(StateKey other)
+    {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    
+    public int getNumLines()
+    {
+        int sum = 0;
+        for (long word : words)
+            sum += Long.bitCount(word);
+        return sum;
+    }
+
+    
+    public long hash64()
+    {
+        long hash = 0;
+
+        for (int i = 0; i < words.length; ++i) {
+            for (long word = words[i]; word != 0; word &= word - 1)
+                hash ^= zobrist((i << 6) + Long.numberOfTrailingZeros(word));
+        }
+
+        return hash;
+    }
+
+    
+    public static long zobrist(int line)
+    {
+        // SplitMix64 finalizer, so the per line keys need no table and are
+        // the same in every run.
+        long z = (line + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof StateKey
+            && Arrays.equals(words, ((StateKey) obj).words);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = words.length - 1; i >= 0; --i)
+            builder.append(String.format("%016x", words[i]));
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package dots.engine;
+
+import dots.agent.Agent;
+import dots.agent.QLearningAgent;
+import dots.agent.RandomAgent;
+import dots.agent.q.ArrayStateMatrix;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+public class SweepExecutor
+{
+    
+    public static class Configuration
+    {
+        public final float discountFactor;
+
+        public final float learningRate;
+
+        public final float explorationQuotient;
+
+        public Configuration(float discountFactor, float learningRate,
+                float explorationQuotient)
+        {
+            this.discountFactor = discountFactor;
+            this.learningRate = learningRate;
+            this.explorationQuotient = explorationQuotient;
+        }
+    }
+
+    
+    private static final String[] COLUMNS = {
+        "backend", "discount_factor", "learning_rate", "exploration_quotient",
+        "train_rounds", "train_wins", "eval_rounds", "eval_wins",
+        "eval_share", "seconds"
+    };
+
+    
+    private final int width;
+
+    
+    private final int height;
+
+    
+    private final Symmetry symmetry;
+
+    
+    private final String backend;
+
+    
+    private final float defaultValue;
+
+    
+    private final long trainRounds;
+
+    
+    private final long evalRounds;
+
+    
+    private final long seed;
+
+    
+    private Writer writer;
+
+    
+    private boolean json;
+
+    
+    private Logger logger;
+
+    
+    // Tables are kept in memory whatever the backend, but start from the
+    // backend's default value. QLearningAgent explores actions whose value
+    // is still 0, so the default changes what is learned.
+    public SweepExecutor(int width, int height, Symmetry symmetry,
+            String backend, float defaultValue, long trainRounds,
+            long evalRounds, long seed)
+    {
+        this.width = width;
+        this.height = height;
+        this.symmetry = symmetry;
+        this.backend = backend;
+        this.defaultValue = defaultValue;
+        this.trainRounds = trainRounds;
+        this.evalRounds = evalRounds;
+        this.seed = seed;
+
+        logger = Logger.getLogger(getClass().getPackage().getName());
+    }
+
+    
+    public static List<Configuration> grid(float[] discountFactors,
+            float[] learningRates, float[] explorationQuotients)
+    {
+        List<Configuration> configurations = new ArrayList<Configuration>();
+
+        for (float discountFactor : discountFactors)
+            for (float learningRate : learningRates)
+                for (float explorationQuotient : explorationQuotients)
+                    configurations.add(new Configuration(discountFactor,
+                                learningRate, explorationQuotient));
+
+        return configurations;
+    }
+
+    
+    // Results are written as they come in, as JSON lines if the filename
+    // ends in .jsonl and as CSV otherwise.
+    public void run(final List<Configuration> configurations, int numThreads,
+            String filename) throws IOException, InterruptedException
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final int numStates = (int) new Grid(width, height).getNumStates();
+        final int numActions = new Grid(width, height).getSize();
+
+        json = filename.endsWith(".jsonl");
+        writer = new BufferedWriter(new FileWriter(filename));
+
+        if (!json)
+            writeLine(String.join(",", COLUMNS));
+
+        numThreads = Math.max(1, Math.min(numThreads, configurations.size()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < numThreads; ++i) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException
+                {
+                    // Each worker allocates its table and board once and
+                    // resets them between configurations, instead of a
+                    // new JVM and a new table per configuration.
+                    ArrayStateMatrix matrix = ArrayStateMatrix.create(null,
+                            numStates, numActions, defaultValue);
+                    Grid grid = new Grid(width, height);
+
+                    for (int index = next.getAndIncrement();
+                            index < configurations.size();
+                            index = next.getAndIncrement()) {
+                        matrix.reset();
+                        runConfiguration(index, configurations.get(index),
+                                matrix, grid);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            writer.close();
+        }
+    }
+
+    
+    private void runConfiguration(int index, Configuration configuration,
+            ArrayStateMatrix matrix, Grid grid)
+        throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+
+        // Games are seeded by the position in the grid, not by the worker
+        // that happens to run the configuration.
+        Agent learner = new QLearningAgent(true, matrix,
+                configuration.discountFactor, configuration.learningRate,
+                configuration.explorationQuotient, symmetry);
+        long trainWins = play(learner, new RandomAgent(seed + 2 * index),
+                grid, trainRounds, seed + 2 * index);
+
+        Agent player = new QLearningAgent(false, matrix,
+                configuration.discountFactor, configuration.learningRate,
+                configuration.explorationQuotient, symmetry);
+        long evalWins = play(player, new RandomAgent(seed + 2 * index + 1),
+                grid, evalRounds, seed + 2 * index + 1);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Object[] values = {
+            backend, configuration.discountFactor, configuration.learningRate,
+            configuration.explorationQuotient, trainRounds, trainWins,
+            evalRounds, evalWins,
+            evalRounds > 0 ? (double) evalWins / evalRounds : 0.0, seconds
+        };
+
+        StringBuilder line = new StringBuilder(json ? "{" : "");
+        for (int i = 0; i < COLUMNS.length; ++i) {
+            if (i > 0)
+                line.append(',');
+            if (json)
+                line.append('"').append(COLUMNS[i]).append("\":");
+            if (json && values[i] instanceof String)
+                line.append('"').append(values[i]).append('"');
+            else
+                line.append(String.format(Locale.ROOT, "%s", values[i]));
+        }
+        if (json)
+            line.append('}');
+
+        writeLine(line.toString());
+
+        logger.fine(String.format("Configuration %d done in %.2fs.", index,
+                    seconds));
+    }
+
+    
+    private long play(Agent agent, Agent opponent, Grid grid, long rounds,
+            long seed) throws InterruptedException
+    {
+        DotsNBoxes game = new DotsNBoxes(grid, agent, opponent, 0);
+        game.setSeed(seed);
+
+        for (long i = 0; i < rounds; ++i)
+            game.playRound();
+
+        return game.scoring.getScore(agent);
+    }
+
+    
+    private synchronized void writeLine(String line) throws IOException
+    {
+        // Flushed per line, an interrupted sweep keeps what it finished.
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+}
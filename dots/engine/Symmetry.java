@@ -0,0 +1,163 @@
+package dots.engine;
+
+
+public class Symmetry
+{
+    
+    private final int numLines;
+
+    
+    private final int numBytes;
+
+    
+    private final int[][] forward;
+
+    
+    private final int[][] inverse;
+
+    
+    private final long[][] tables;
+
+    
+    public Symmetry(int width, int height)
+    {
+        this.numLines = height * (width - 1) + width * (height - 1);
+
+        if (numLines > 64)
+            throw new IllegalArgumentException(String.format(
+                        "Symmetry supports at most 64 lines, got %d.",
+                        numLines));
+
+        int numTransforms = width == height ? 8 : 4;
+        numBytes = (numLines + 7) / 8;
+        forward = new int[numTransforms][numLines];
+        inverse = new int[numTransforms][numLines];
+        tables = new long[numTransforms][numBytes * 256];
+
+        for (int t = 0; t < numTransforms; ++t) {
+            for (int line = 0; line < numLines; ++line) {
+                int target = transformLine(width, height, t, line);
+                forward[t][line] = target;
+                inverse[t][target] = line;
+            }
+
+            // Per byte lookup tables turn a transform of the whole bitmask
+            // into numBytes loads and ORs.
+            for (int b = 0; b < numBytes; ++b) {
+                for (int value = 0; value < 256; ++value) {
+                    long mask = 0;
+                    for (int bit = 0; bit < 8; ++bit) {
+                        int line = b * 8 + bit;
+                        if (line < numLines && ((value >> bit) & 1) == 1)
+                            mask |= 1L << forward[t][line];
+                    }
+                    tables[t][b * 256 + value] = mask;
+                }
+            }
+        }
+    }
+
+    
+    public int getNumTransforms()
+    {
+        return forward.length;
+    }
+
+    
+    public long transform(int transform, long state)
+    {
+        long[] table = tables[transform];
+        long result = 0;
+
+        for (int b = 0; b < numBytes; ++b)
+            result |= table[(b << 8) | (int) ((state >>> (b << 3)) & 0xff)];
+
+        return result;
+    }
+
+    
+    public int transformAction(int transform, int action)
+    {
+        return forward[transform][action];
+    }
+
+    
+    public int inverseAction(int transform, int action)
+    {
+        return inverse[transform][action];
+    }
+
+    
+    public int getCanonicalTransform(long state)
+    {
+        int best = 0;
+        long min = state;
+
+        for (int t = 1; t < forward.length; ++t) {
+            long candidate = transform(t, state);
+            if (Long.compareUnsigned(candidate, min) < 0) {
+                min = candidate;
+                best = t;
+            }
+        }
+
+        return best;
+    }
+
+    
+    public long getCanonical(long state)
+    {
+        return transform(getCanonicalTransform(state), state);
+    }
+
+    
+    private static int transformLine(int width, int height, int transform,
+            int line)
+    {
+        int rowLength = 2 * width - 1;
+        int row = line / rowLength;
+        int column = line % rowLength;
+        int x1, y1, x2, y2;
+
+        if (column < width - 1) {
+            x1 = column;
+            y1 = row;
+            x2 = column + 1;
+            y2 = row;
+        } else {
+            x1 = column - (width - 1);
+            y1 = row;
+            x2 = x1;
+            y2 = row + 1;
+        }
+
+        int[] a = transformDot(width, height, transform, x1, y1);
+        int[] b = transformDot(width, height, transform, x2, y2);
+        int x = Math.min(a[0], b[0]);
+        int y = Math.min(a[1], b[1]);
+
+        if (a[1] == b[1])
+            return y * rowLength + x;
+        return y * rowLength + (width - 1) + x;
+    }
+
+    
+    private static int[] transformDot(int width, int height, int transform,
+            int x, int y)
+    {
+        // Transforms 0-3 are the reflections every rectangle has, 4-7
+        // compose them with a transpose and only exist on square boards.
+        if (transform >= 4) {
+            int tmp = x;
+            x = y;
+            y = tmp;
+        }
+
+        if ((transform & 1) != 0)
+            x = width - 1 - x;
+        if ((transform & 2) != 0)
+            y = height - 1 - y;
+
+        return new int[] {x, y};
+    }
+}
@@ -0,0 +1,100 @@
+package dots.util;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public final class Metrics
+{
+    
+    // Adders keep the counters off any shared cache line, the hot paths only
+    // touch them once per round or episode.
+    private static final LongAdder rounds = new LongAdder();
+
+    
+    private static final LongAdder moves = new LongAdder();
+
+    
+    private static final LongAdder qUpdates = new LongAdder();
+
+    
+    private static final DoubleAdder absTdError = new DoubleAdder();
+
+    
+    private static final LongAdder checkpoints = new LongAdder();
+
+    
+    private static final LongAdder checkpointNanos = new LongAdder();
+
+    
+    private static volatile long lastCheckpointNanos;
+
+    
+    private Metrics()
+    {
+    }
+
+    
+    public static void roundPlayed(int numMoves)
+    {
+        rounds.increment();
+        moves.add(numMoves);
+    }
+
+    
+    public static void qUpdated(int numUpdates, double sumAbsTdError)
+    {
+        qUpdates.add(numUpdates);
+        absTdError.add(sumAbsTdError);
+    }
+
+    
+    public static void checkpointed(long nanos)
+    {
+        checkpoints.increment();
+        checkpointNanos.add(nanos);
+        lastCheckpointNanos = nanos;
+    }
+
+    
+    public static long getRounds()
+    {
+        return rounds.sum();
+    }
+
+    
+    public static long getMoves()
+    {
+        return moves.sum();
+    }
+
+    
+    public static long getQUpdates()
+    {
+        return qUpdates.sum();
+    }
+
+    
+    public static double getSumAbsTdError()
+    {
+        return absTdError.sum();
+    }
+
+    
+    public static long getCheckpoints()
+    {
+        return checkpoints.sum();
+    }
+
+    
+    public static long getCheckpointNanos()
+    {
+        return checkpointNanos.sum();
+    }
+
+    
+    public static long getLastCheckpointNanos()
+    {
+        return lastCheckpointNanos;
+    }
+}
@@ -0,0 +1,200 @@
+package dots.agent.q;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+public class ForeignStateMatrix implements StateMatrix
+{
+    
+    private static final ValueLayout.OfFloat FLOAT =
+        ValueLayout.JAVA_FLOAT.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    
+    private static final VarHandle CELL =
+        MethodHandles.memorySegmentViewVarHandle(FLOAT);
+
+    
+    private final RandomAccessFile file;
+
+    
+    private final Arena arena;
+
+    
+    private final MemorySegment segment;
+
+    
+    private final long numStates;
+
+    
+    private final int numActions;
+
+    
+    private final long rowSize;
+
+    
+    private boolean closed;
+
+    
+    private ForeignStateMatrix(RandomAccessFile file, long numStates,
+            int numActions) throws IOException
+    {
+        this.file = file;
+        this.numStates = numStates;
+        this.numActions = numActions;
+        this.rowSize = (long) numActions * 4;
+
+        // One segment covers the whole table, offsets are plain longs so
+        // there is no chunking as with MappedByteBuffer. A shared arena lets
+        // self-play threads use the table concurrently.
+        arena = Arena.ofShared();
+        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                StateMatrixFile.HEADER_SIZE, numStates * rowSize, arena);
+    }
+
+    @Override
+    public float getQ(long state, int action)
+    {
+        return segment.get(FLOAT, state * rowSize + ((long) action << 2));
+    }
+
+    @Override
+    public void setQ(long state, int action, float value)
+    {
+        segment.set(FLOAT, state * rowSize + ((long) action << 2), value);
+    }
+
+    @Override
+    public void getRow(long state, float[] row)
+    {
+        MemorySegment.copy(segment, FLOAT, state * rowSize, row, 0,
+                row.length);
+    }
+
+    @Override
+    public boolean compareAndSetQ(long state, int action, float expected,
+            float value)
+    {
+        return CELL.compareAndSet(segment,
+                state * rowSize + ((long) action << 2), expected, value);
+    }
+
+    @Override
+    public float getMaxValue(long state)
+    {
+        long offset = state * rowSize;
+        float max = segment.get(FLOAT, offset);
+
+        for (int i = 1; i < numActions; ++i) {
+            float value = segment.get(FLOAT, offset + ((long) i << 2));
+            if (value > max)
+                max = value;
+        }
+
+        return max;
+    }
+
+    @Override
+    public int getNumActions()
+    {
+        return numActions;
+    }
+
+    @Override
+    public long getNumStates()
+    {
+        return numStates;
+    }
+
+    public void shutdown()
+    {
+        try {
+            close();
+        } catch (IOException e) {
+            // Nothing we can do here, the OS still owns the dirty pages.
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+
+        segment.force();
+        arena.close();
+        file.close();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        segment.force();
+    }
+
+    
+    public static ForeignStateMatrix create(String filename, long numStates,
+            int numActions) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+
+        try {
+            // The layout is the one shared with the other dense backends,
+            // the rows start out as a hole in the file and read as zero.
+            file.setLength(0);
+            file.setLength(StateMatrixFile.HEADER_SIZE
+                    + numStates * numActions * 4);
+
+            new StateMatrixFile(numStates, numActions, 0)
+                .write(file.getChannel());
+
+            return new ForeignStateMatrix(file, numStates, numActions);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    
+    public static ForeignStateMatrix load(String filename, long numStates,
+            int numActions) throws IOException
+    {
+        if (!new File(filename).isFile())
+            throw new FileNotFoundException(filename);
+
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+
+        try {
+            StateMatrixFile header = StateMatrixFile.read(file.getChannel());
+            header.check(numStates, numActions);
+
+            if (file.length() < StateMatrixFile.HEADER_SIZE
+                    + numStates * numActions * 4)
+                throw new IOException("Truncated state matrix file.");
+
+            // Rows are modified in place from here on, which a checksum
+            // written by another backend would no longer match.
+            if (header.hasChecksum()) {
+                header.flags &= ~StateMatrixFile.FLAG_CHECKSUM;
+                header.checksum = 0;
+                header.write(file.getChannel());
+            }
+
+            return new ForeignStateMatrix(file, numStates, numActions);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+}
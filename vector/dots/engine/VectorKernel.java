@@ -0,0 +1,119 @@
+package dots.engine;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+public class VectorKernel implements BatchSimulator.Kernel
+{
+    
+    private static final VectorSpecies<Long> SPECIES =
+        LongVector.SPECIES_PREFERRED;
+
+    
+    // Finishes the tail shorter than a vector.
+    private final BatchSimulator.ScalarKernel scalar;
+
+    
+    private final int down;
+
+    
+    private final int left;
+
+    
+    private final int right;
+
+    
+    private final long tops;
+
+    
+    private final long full;
+
+    
+    public VectorKernel(int width, int height)
+    {
+        scalar = new BatchSimulator.ScalarKernel(width, height);
+        down = 2 * width - 1;
+        left = width - 1;
+        right = width;
+
+        long tops = 0;
+        for (int row = 0; row < height - 1; ++row) {
+            for (int column = 0; column < width - 1; ++column)
+                tops |= 1L << (row * down + column);
+        }
+        this.tops = tops;
+        this.full = new Grid(width, height).getMaxIdentifier();
+    }
+
+    @Override
+    public void completedBoxes(long[] lines, long[] boxes, int n)
+    {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector l = LongVector.fromArray(SPECIES, lines, i);
+
+            l.and(l.lanewise(VectorOperators.LSHR, down))
+                .and(l.lanewise(VectorOperators.LSHR, left))
+                .and(l.lanewise(VectorOperators.LSHR, right))
+                .and(tops)
+                .intoArray(boxes, i);
+        }
+
+        scalar.completedBoxes(lines, boxes, i, n);
+    }
+
+    @Override
+    public void classifyLines(long[] lines, long[] captures, long[] safe,
+            int n)
+    {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector t = LongVector.fromArray(SPECIES, lines, i);
+            LongVector b = t.lanewise(VectorOperators.LSHR, down);
+            LongVector w = t.lanewise(VectorOperators.LSHR, left);
+            LongVector e = t.lanewise(VectorOperators.LSHR, right);
+
+            // The same bit-sliced side count as the scalar kernel.
+            LongVector s1 = t.lanewise(VectorOperators.XOR, b);
+            LongVector c1 = t.and(b);
+            LongVector s2 = w.lanewise(VectorOperators.XOR, e);
+            LongVector c2 = w.and(e);
+            LongVector ones = s1.lanewise(VectorOperators.XOR, s2);
+            LongVector carry = s1.and(s2);
+            LongVector twos = c1.lanewise(VectorOperators.XOR, c2)
+                .lanewise(VectorOperators.XOR, carry);
+            LongVector fours = c1.and(c2)
+                .or(c1.lanewise(VectorOperators.XOR, c2).and(carry));
+
+            LongVector three = ones.and(twos).and(tops);
+            LongVector two = ones.not().and(twos).and(fours.not()).and(tops);
+
+            LongVector capture = missing(three, t, b, w, e);
+            LongVector unsafe = missing(two, t, b, w, e);
+
+            capture.intoArray(captures, i);
+            t.not().and(capture.not()).and(unsafe.not()).and(full)
+                .intoArray(safe, i);
+        }
+
+        scalar.classifyLines(lines, captures, safe, i, n);
+    }
+
+    
+    // The lines of the boxes in selected whose side is not drawn, moved
+    // from the box bit to the line bit.
+    private LongVector missing(LongVector selected, LongVector t,
+            LongVector b, LongVector w, LongVector e)
+    {
+        return selected.and(t.not())
+            .or(selected.and(b.not()).lanewise(VectorOperators.LSHL, down))
+            .or(selected.and(w.not()).lanewise(VectorOperators.LSHL, left))
+            .or(selected.and(e.not()).lanewise(VectorOperators.LSHL, right));
+    }
+}